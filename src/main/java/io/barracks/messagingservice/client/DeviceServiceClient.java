@@ -24,69 +24,286 @@
 
 package io.barracks.messagingservice.client;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import io.barracks.commons.util.Endpoint;
 import io.barracks.messagingservice.model.Filter;
 import io.barracks.messagingservice.client.exception.DeviceServiceClientException;
 import io.barracks.messagingservice.model.BarracksQuery;
 import io.barracks.messagingservice.model.Device;
+import io.barracks.messagingservice.model.DeviceIdPage;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.data.domain.Pageable;
+import org.springframework.hateoas.MediaTypes;
 import org.springframework.hateoas.PagedResources;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
 @Component
-public class DeviceServiceClient extends HateoasRestClient {
+public class DeviceServiceClient extends HateoasRestClient implements PublicMetrics {
 
     static final Endpoint GET_DEVICES_ENDPOINT = Endpoint.from(HttpMethod.GET, "/owners/{userId}/devices", "query={query}");
     static final Endpoint GET_FILTER_ENDPOINT = Endpoint.from(HttpMethod.GET, "/owners/{userId}/filters/{name}");
 
     private final String baseUrl;
 
-    private final RestTemplate restTemplate;
+    final RestTemplate restTemplate;
+
+    private final JsonFactory jsonFactory;
+
+    final AsyncRestTemplate asyncRestTemplate;
+
+    private final HttpComponentsAsyncClientHttpRequestFactory asyncRequestFactory;
+
+    private final LoadingCache<FilterKey, CachedFilter> filters;
+
+    private final AtomicLong notModifiedFilters = new AtomicLong();
 
     @Autowired
     public DeviceServiceClient(
             ObjectMapper mapper,
             RestTemplateBuilder restTemplateBuilder,
-            @Value("${io.barracks.deviceservice.v2.base_url}") String baseUrl
+            @Value("${io.barracks.deviceservice.v2.base_url}") String baseUrl,
+            @Value("${io.barracks.deviceservice.filter_cache.ttl}") long filterTtl,
+            @Value("${io.barracks.deviceservice.filter_cache.refresh}") long filterRefresh,
+            @Value("${io.barracks.deviceservice.filter_cache.max_size}") long filterCacheSize,
+            @Value("${io.barracks.deviceservice.async.max_connections}") int asyncMaxConnections,
+            @Value("${io.barracks.deviceservice.async.connect_timeout}") int connectTimeout,
+            @Value("${io.barracks.deviceservice.async.read_timeout}") int readTimeout
     ) {
         this.restTemplate = prepareRestTemplateBuilder(mapper, restTemplateBuilder).build();
+        this.jsonFactory = mapper.getFactory();
+        this.asyncRequestFactory = new HttpComponentsAsyncClientHttpRequestFactory(
+                HttpAsyncClients.custom()
+                        .setMaxConnTotal(asyncMaxConnections)
+                        .setMaxConnPerRoute(asyncMaxConnections)
+                        .setDefaultRequestConfig(RequestConfig.custom()
+                                .setConnectionRequestTimeout(connectTimeout)
+                                .setConnectTimeout(connectTimeout)
+                                .setSocketTimeout(readTimeout)
+                                .build())
+                        .build()
+        );
+        this.asyncRestTemplate = new AsyncRestTemplate(asyncRequestFactory);
+        this.asyncRestTemplate.setMessageConverters(restTemplate.getMessageConverters());
         this.baseUrl = baseUrl;
+        final Caffeine<Object, Object> filterCacheBuilder = Caffeine.newBuilder()
+                .maximumSize(filterCacheSize)
+                .expireAfterWrite(filterTtl, TimeUnit.MILLISECONDS)
+                .recordStats();
+        // A refresh interval of 0 turns background revalidation off, entries are then only reloaded once expired
+        if (filterRefresh > 0) {
+            filterCacheBuilder.refreshAfterWrite(filterRefresh, TimeUnit.MILLISECONDS);
+        }
+        this.filters = filterCacheBuilder.build(new CacheLoader<FilterKey, CachedFilter>() {
+            @Override
+            public CachedFilter load(FilterKey key) {
+                return fetchFilter(key, null);
+            }
+
+            @Override
+            public CachedFilter reload(FilterKey key, CachedFilter oldValue) {
+                return fetchFilter(key, oldValue);
+            }
+        });
     }
 
-    public PagedResources<Device> getDevices(String userId, Pageable pageable, BarracksQuery query) {
+    // Streams the unit ids of a page to the consumer while it is being read, without binding a Device per entry
+    public DeviceIdPage getDeviceIds(String userId, Pageable pageable, BarracksQuery query, Consumer<String> unitIdConsumer) {
+        return getDeviceEntries(userId, pageable, query, (unitId, firstSeen) -> unitIdConsumer.accept(unitId));
+    }
+
+    // Same as getDeviceIds, also passing the firstSeen text of each device, which is only valid during the call
+    public DeviceIdPage getDeviceEntries(String userId, Pageable pageable, BarracksQuery query, BiConsumer<String, CharSequence> deviceConsumer) {
+        final RequestEntity<?> request = GET_DEVICES_ENDPOINT.withBase(baseUrl).pageable(pageable).getRequestEntity(userId, query.toJsonString());
         try {
-            final ResponseEntity<PagedResources<Device>> responseEntity = restTemplate.exchange(
-                    GET_DEVICES_ENDPOINT.withBase(baseUrl).pageable(pageable).getRequestEntity(userId, query.toJsonString()),
-                    new ParameterizedTypeReference<PagedResources<Device>>() {
-                    }
+            return restTemplate.execute(
+                    request.getUrl(),
+                    request.getMethod(),
+                    clientRequest -> clientRequest.getHeaders().setAccept(Arrays.asList(MediaTypes.HAL_JSON, MediaType.APPLICATION_JSON)),
+                    response -> readDeviceIds(response.getBody(), deviceConsumer)
             );
-            return responseEntity.getBody();
         } catch (HttpStatusCodeException e) {
             throw new DeviceServiceClientException(e);
         }
     }
 
+    public CompletableFuture<PagedResources<Device>> getDevicesAsync(String userId, Pageable pageable, BarracksQuery query) {
+        final RequestEntity<?> request = GET_DEVICES_ENDPOINT.withBase(baseUrl).pageable(pageable).getRequestEntity(userId, query.toJsonString());
+        final CompletableFuture<PagedResources<Device>> result = new CompletableFuture<>();
+        asyncRestTemplate.exchange(
+                request.getUrl(),
+                request.getMethod(),
+                request,
+                new ParameterizedTypeReference<PagedResources<Device>>() {
+                }
+        ).addCallback(
+                responseEntity -> result.complete(responseEntity.getBody()),
+                e -> result.completeExceptionally(
+                        e instanceof HttpStatusCodeException ? new DeviceServiceClientException((HttpStatusCodeException) e) : e
+                )
+        );
+        return result;
+    }
+
     public Filter getFilterByUserIdAndName(String userId, String name) {
+        return filters.get(new FilterKey(userId, name)).getFilter();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = filters.stats();
+        return Arrays.asList(
+                new Metric<>("deviceservice.filter_cache.size", filters.estimatedSize()),
+                new Metric<>("deviceservice.filter_cache.hits", stats.hitCount()),
+                new Metric<>("deviceservice.filter_cache.misses", stats.missCount()),
+                new Metric<>("deviceservice.filter_cache.evictions", stats.evictionCount()),
+                new Metric<>("deviceservice.filter_cache.loads", stats.loadSuccessCount()),
+                new Metric<>("deviceservice.filter_cache.not_modified", notModifiedFilters.get())
+        );
+    }
+
+    DeviceIdPage readDeviceIds(InputStream body, BiConsumer<String, CharSequence> deviceConsumer) throws IOException {
+        int count = 0;
+        long totalElements = -1;
+        long totalPages = -1;
+        String lastUnitId = null;
+        final StringBuilder firstSeen = new StringBuilder(32);
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a paged resource");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                } else if ("_embedded".equals(field)) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        if (parser.nextToken() != JsonToken.START_ARRAY) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            String unitId = null;
+                            firstSeen.setLength(0);
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                final String deviceField = parser.getCurrentName();
+                                parser.nextToken();
+                                if ("unitId".equals(deviceField)) {
+                                    unitId = parser.getValueAsString();
+                                } else if ("firstSeen".equals(deviceField) && parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+                                    firstSeen.append(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                                } else {
+                                    parser.skipChildren();
+                                }
+                            }
+                            if (unitId != null) {
+                                deviceConsumer.accept(unitId, firstSeen);
+                                lastUnitId = unitId;
+                                count++;
+                            }
+                        }
+                    }
+                } else if ("page".equals(field)) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final String pageField = parser.getCurrentName();
+                        parser.nextToken();
+                        if ("totalElements".equals(pageField)) {
+                            totalElements = parser.getLongValue();
+                        } else if ("totalPages".equals(pageField)) {
+                            totalPages = parser.getLongValue();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (totalElements < 0) {
+            totalElements = count;
+            totalPages = count == 0 ? 0 : 1;
+        }
+        return new DeviceIdPage(count, totalElements, totalPages, lastUnitId, firstSeen.length() == 0 ? null : firstSeen.toString());
+    }
+
+    @PreDestroy
+    public void close() throws Exception {
+        asyncRequestFactory.destroy();
+    }
+
+    // Revalidates a cached definition with its ETag when the device service provided one
+    CachedFilter fetchFilter(FilterKey key, CachedFilter cached) {
+        final HttpHeaders headers = new HttpHeaders();
+        if (cached != null && cached.getEtag() != null) {
+            headers.setIfNoneMatch(cached.getEtag());
+        }
         try {
             final ResponseEntity<Filter> responseEntity = restTemplate.exchange(
-                    GET_FILTER_ENDPOINT.withBase(baseUrl).getRequestEntity(userId, name),
+                    GET_FILTER_ENDPOINT.withBase(baseUrl).headers(headers).getRequestEntity(key.getUserId(), key.getName()),
                     Filter.class
             );
-            return responseEntity.getBody();
-        }
-        catch (HttpStatusCodeException e) {
+            if (cached != null && responseEntity.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                notModifiedFilters.incrementAndGet();
+                return cached;
+            }
+            return new CachedFilter(responseEntity.getBody(), responseEntity.getHeaders().getETag());
+        } catch (HttpStatusCodeException e) {
             throw new DeviceServiceClientException(e);
         }
+    }
+
+    @Getter
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    static final class FilterKey {
+        private final String userId;
+        private final String name;
+    }
 
+    @Getter
+    @AllArgsConstructor
+    static final class CachedFilter {
+        private final Filter filter;
+        private final String etag;
     }
 
 }
@@ -22,56 +22,42 @@
  * SOFTWARE.
  */
 
-package io.barracks.messagingservice.client;
 
-import lombok.extern.slf4j.Slf4j;
-import org.eclipse.paho.client.mqttv3.IMqttClient;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
-import org.springframework.stereotype.Component;
+package io.barracks.messagingservice.client;
 
-import java.nio.charset.StandardCharsets;
+import io.barracks.messagingservice.model.MessagePayload;
 
-@Component
-@Slf4j
-public class MQTTBrokerClient {
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
-    private final String uri;
+public interface MQTTBrokerClient {
 
-    private final MqttPahoClientFactory mqttPahoClientFactory;
+    /**
+     * Publishes the payload on the device's topic. With QoS 0 the future completes as soon as the message is written
+     * to the broker connection, without waiting for any acknowledgement.
+     */
+    CompletableFuture<Void> sendMessageAsync(MessagePayload payload, String unitId);
 
-    @Autowired
-    public MQTTBrokerClient(
-            @Value("${io.barracks.mqtt.uri}") String uri,
-            MqttPahoClientFactory mqttPahoClientFactory
-    ) {
-        this.uri = uri;
-        this.mqttPahoClientFactory = mqttPahoClientFactory;
+    /**
+     * Whether the broker keeps retained payloads for devices that subscribe later. Retained payloads sent through a
+     * client that does not support them fail.
+     */
+    default boolean supportsRetained() {
+        return true;
     }
 
-    public void sendMessage(String apiKey, String unitId, String message, boolean retained) {
-        final String topic = apiKey + "/" + unitId;
-        final String clientId = apiKey + "." + unitId + ".sender";
+    /**
+     * Waits for a publication to settle, for clients publishing synchronously. Failures are left to the future, which
+     * the caller still gets, and to the client's own completion handler.
+     */
+    static void awaitQuietly(CompletableFuture<Void> future) {
         try {
-            final IMqttClient client = mqttPahoClientFactory.getClientInstance(uri, clientId);
-            client.connect();
-            try {
-                client.subscribe(topic);
-                final MqttMessage mqttMessage = new MqttMessage(message.getBytes(StandardCharsets.UTF_8));
-                mqttMessage.setQos(1);
-                mqttMessage.setRetained(retained);
-                client.publish(
-                        topic,
-                        mqttMessage
-                );
-            } finally {
-                client.disconnect();
-            }
-        } catch (Exception e) {
-            log.error("Error While Sending Mqtt Messages", e);
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already logged by the completion handler, the caller gets the failed future.
         }
-
     }
+
 }
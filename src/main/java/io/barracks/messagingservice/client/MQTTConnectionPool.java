@@ -0,0 +1,128 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.client;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-size set of long-lived, publish-only MQTT connections shared by every sender.
+ * Connections are opened lazily, re-established on use when they dropped, and checked periodically in the background.
+ * Each topic is consistently published through the same connection, which keeps the messages of a device in order.
+ */
+@Slf4j
+class MQTTConnectionPool {
+
+    private final MQTTPublisherConnection[] connections;
+
+    private final ScheduledExecutorService healthChecker;
+
+    MQTTConnectionPool(String uri, MqttPahoClientFactory mqttPahoClientFactory, int size, int maxInFlight, long connectTimeout, long healthCheckInterval) {
+        if (size < 1) {
+            throw new IllegalArgumentException("MQTT connection pool size must be at least 1");
+        }
+        final String clientIdPrefix = "messaging-service." + UUID.randomUUID() + ".";
+        this.connections = new MQTTPublisherConnection[size];
+        for (int i = 0; i < size; i++) {
+            connections[i] = new MQTTPublisherConnection(uri, clientIdPrefix + i, mqttPahoClientFactory, maxInFlight, connectTimeout);
+        }
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "mqtt-pool-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (healthCheckInterval > 0) {
+            healthChecker.scheduleWithFixedDelay(this::checkConnections, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    MQTTPublisherConnection getConnection(String topic) {
+        return connections[ConsistentHash.bucket(topic, connections.length)];
+    }
+
+    int size() {
+        return connections.length;
+    }
+
+    List<Metric<?>> metrics(boolean perConnection) {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        long inFlight = 0;
+        long published = 0;
+        long failed = 0;
+        long connected = 0;
+        for (int i = 0; i < connections.length; i++) {
+            final MQTTPublisherConnection connection = connections[i];
+            final int connectionInFlight = connection.getInFlightCount();
+            final boolean connectionConnected = connection.isConnected();
+            if (perConnection) {
+                final String prefix = "mqtt.shard." + i + ".";
+                metrics.add(new Metric<>(prefix + "in_flight", connectionInFlight));
+                metrics.add(new Metric<>(prefix + "published", connection.getPublishedCount()));
+                metrics.add(new Metric<>(prefix + "failed", connection.getFailedCount()));
+                metrics.add(new Metric<>(prefix + "connected", connectionConnected ? 1 : 0));
+            }
+            inFlight += connectionInFlight;
+            published += connection.getPublishedCount();
+            failed += connection.getFailedCount();
+            connected += connectionConnected ? 1 : 0;
+        }
+        metrics.add(new Metric<>("mqtt.shards", connections.length));
+        metrics.add(new Metric<>("mqtt.shards.connected", connected));
+        metrics.add(new Metric<>("mqtt.in_flight", inFlight));
+        metrics.add(new Metric<>("mqtt.published", published));
+        metrics.add(new Metric<>("mqtt.failed", failed));
+        return metrics;
+    }
+
+    void close() {
+        healthChecker.shutdownNow();
+        for (MQTTPublisherConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void checkConnections() {
+        for (int i = 0; i < connections.length; i++) {
+            final MQTTPublisherConnection connection = connections[i];
+            if (connection.isOpened() && !connection.isConnected()) {
+                try {
+                    connection.ensureConnected();
+                } catch (MqttException e) {
+                    log.warn("Pooled MQTT connection {} is down and could not be re-established", i, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.client;
+
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single long-lived publishing connection that keeps at most {@code maxInFlight} unacknowledged messages
+ * on the wire. Callers publishing past that window block until the broker acknowledges earlier messages.
+ * QoS 0 messages are never acknowledged and get a window of their own, bounding those not written out yet.
+ * Messages are handed to the client from the connection's own thread, in the order they were submitted, so
+ * that reconnecting never stalls the callers.
+ */
+@Slf4j
+class MQTTPublisherConnection {
+
+    private final String uri;
+
+    private final String clientId;
+
+    private final MqttPahoClientFactory mqttPahoClientFactory;
+
+    private final int maxInFlight;
+
+    private final long connectTimeout;
+
+    private final Semaphore inFlight;
+
+    private final Semaphore unsent;
+
+    private final ExecutorService ioThread;
+
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private IMqttAsyncClient client;
+
+    MQTTPublisherConnection(String uri, String clientId, MqttPahoClientFactory mqttPahoClientFactory, int maxInFlight, long connectTimeout) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("MQTT in-flight window must be at least 1");
+        }
+        this.uri = uri;
+        this.clientId = clientId;
+        this.mqttPahoClientFactory = mqttPahoClientFactory;
+        this.maxInFlight = maxInFlight;
+        this.connectTimeout = connectTimeout;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.unsent = new Semaphore(maxInFlight);
+        this.ioThread = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "mqtt-publisher-" + clientId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // QoS 0 publications complete once written to the socket, the others once acknowledged by the broker
+    CompletableFuture<Void> publish(String topic, MqttMessage message) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final Semaphore window = message.getQos() == 0 ? unsent : inFlight;
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+        try {
+            ioThread.execute(() -> send(topic, message, window, result));
+        } catch (RejectedExecutionException e) {
+            window.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    synchronized boolean isConnected() {
+        return client != null && client.isConnected();
+    }
+
+    synchronized boolean isOpened() {
+        return client != null;
+    }
+
+    int getInFlightCount() {
+        return 2 * maxInFlight - inFlight.availablePermits() - unsent.availablePermits();
+    }
+
+    long getPublishedCount() {
+        return published.get();
+    }
+
+    long getFailedCount() {
+        return failed.get();
+    }
+
+    synchronized IMqttAsyncClient ensureConnected() throws MqttException {
+        if (client == null) {
+            client = mqttPahoClientFactory.getAsyncClientInstance(uri, clientId);
+        }
+        if (!client.isConnected()) {
+            log.debug("Connecting pooled MQTT client {}", clientId);
+            final MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            // Paho counts QoS 0 messages until they are written, leave room for both windows
+            options.setMaxInflight(2 * maxInFlight);
+            client.connect(options).waitForCompletion(connectTimeout);
+        }
+        return client;
+    }
+
+    void close() {
+        ioThread.shutdown();
+        try {
+            ioThread.awaitTermination(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        disconnect();
+    }
+
+    private void send(String topic, MqttMessage message, Semaphore window, CompletableFuture<Void> result) {
+        try {
+            ensureConnected().publish(topic, message, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    published.incrementAndGet();
+                    window.release();
+                    result.complete(null);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    failed.incrementAndGet();
+                    window.release();
+                    result.completeExceptionally(exception);
+                }
+            });
+        } catch (MqttException | RuntimeException e) {
+            failed.incrementAndGet();
+            window.release();
+            result.completeExceptionally(e);
+        }
+    }
+
+    private synchronized void disconnect() {
+        if (client == null) {
+            return;
+        }
+        try {
+            if (client.isConnected()) {
+                client.disconnect().waitForCompletion(connectTimeout);
+            }
+            client.close();
+        } catch (MqttException e) {
+            log.warn("Error while closing pooled MQTT connection {}", clientId, e);
+        } finally {
+            client = null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.client;
+
+import io.barracks.messagingservice.model.MessagePayload;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+@Component
+@ConditionalOnProperty(name = "io.barracks.mqtt.transport", havingValue = "paho", matchIfMissing = true)
+@Slf4j
+public class PahoMQTTBrokerClient implements MQTTBrokerClient, PublicMetrics {
+
+    private final MQTTConnectionPool connectionPool;
+
+    private final boolean asyncEnabled;
+
+    private final boolean shardMetrics;
+
+    @Autowired
+    public PahoMQTTBrokerClient(
+            @Value("${io.barracks.mqtt.uri}") String uri,
+            @Value("${io.barracks.mqtt.pool.size}") int poolSize,
+            @Value("${io.barracks.mqtt.pool.health_check_interval}") long healthCheckInterval,
+            @Value("${io.barracks.mqtt.pool.shard_metrics}") boolean shardMetrics,
+            @Value("${io.barracks.mqtt.connect_timeout}") long connectTimeout,
+            @Value("${io.barracks.mqtt.async.enabled}") boolean asyncEnabled,
+            @Value("${io.barracks.mqtt.async.max_in_flight}") int maxInFlight,
+            MqttPahoClientFactory mqttPahoClientFactory
+    ) {
+        this.connectionPool = new MQTTConnectionPool(uri, mqttPahoClientFactory, poolSize, maxInFlight, connectTimeout, healthCheckInterval);
+        this.asyncEnabled = asyncEnabled;
+        this.shardMetrics = shardMetrics;
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMessageAsync(MessagePayload payload, String unitId) {
+        final String topic = payload.getTopic(unitId);
+        // Paho keeps per-publication state in the MqttMessage, so only the encoded body is shared
+        final MqttMessage mqttMessage = new MqttMessage(payload.getBody());
+        mqttMessage.setQos(payload.getQos());
+        mqttMessage.setRetained(payload.isRetained());
+        final MQTTPublisherConnection connection = connectionPool.getConnection(topic);
+        final CompletableFuture<Void> result = connection.publish(topic, mqttMessage)
+                .whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        log.error("Error While Sending Mqtt Message to {}", topic, e);
+                    }
+                });
+        if (!asyncEnabled) {
+            MQTTBrokerClient.awaitQuietly(result);
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return connectionPool.metrics(shardMetrics);
+    }
+
+    @PreDestroy
+    public void close() {
+        connectionPool.close();
+    }
+}
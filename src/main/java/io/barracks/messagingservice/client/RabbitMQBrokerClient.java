@@ -0,0 +1,139 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.client;
+
+import com.rabbitmq.client.AMQP;
+import io.barracks.messagingservice.client.exception.RabbitMQClientException;
+import io.barracks.messagingservice.model.MessagePayload;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Publishes device messages straight to the topic exchange of the RabbitMQ MQTT plugin. Subscribed devices receive
+ * the same MQTT message as with {@link PahoMQTTBrokerClient}, without any MQTT session being opened on our side.
+ */
+@Component
+@ConditionalOnProperty(name = "io.barracks.mqtt.transport", havingValue = "amqp")
+@Slf4j
+public class RabbitMQBrokerClient implements MQTTBrokerClient {
+
+    static final String MQTT_QOS_HEADER = "x-mqtt-publish-qos";
+
+    // Properties are immutable, one instance per QoS level is shared by every publication
+    private static final AMQP.BasicProperties[] PROPERTIES_BY_QOS = {
+            buildProperties(0),
+            buildProperties(1),
+            buildProperties(2)
+    };
+
+    private final String exchange;
+
+    private final boolean asyncEnabled;
+
+    private final RabbitMQConfirmedChannel[] channels;
+
+    @Autowired
+    public RabbitMQBrokerClient(
+            @Value("${io.barracks.amqp.mqtt_exchange}") String exchange,
+            @Value("${io.barracks.amqp.channels}") int channelCount,
+            @Value("${io.barracks.mqtt.async.enabled}") boolean asyncEnabled,
+            @Value("${io.barracks.mqtt.async.max_in_flight}") int maxInFlight,
+            ConnectionFactory connectionFactory
+    ) {
+        if (channelCount < 1) {
+            throw new IllegalArgumentException("AMQP channel count must be at least 1");
+        }
+        this.exchange = exchange;
+        this.asyncEnabled = asyncEnabled;
+        this.channels = new RabbitMQConfirmedChannel[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            channels[i] = new RabbitMQConfirmedChannel(connectionFactory, maxInFlight);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendMessageAsync(MessagePayload payload, String unitId) {
+        final String topic = payload.getTopic(unitId);
+        if (payload.isRetained()) {
+            final CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new RabbitMQClientException(
+                    "Retained messages are not stored by the MQTT plugin when published over AMQP, refusing to send " + topic
+            ));
+            return rejected;
+        }
+        final CompletableFuture<Void> result = channels[ConsistentHash.bucket(topic, channels.length)]
+                .publish(exchange, toRoutingKey(topic), PROPERTIES_BY_QOS[payload.getQos()], payload.getBody())
+                .whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        log.error("Error While Sending AMQP Message to {}", topic, e);
+                    }
+                });
+        if (!asyncEnabled) {
+            MQTTBrokerClient.awaitQuietly(result);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean supportsRetained() {
+        return false;
+    }
+
+    @PreDestroy
+    public void close() {
+        for (RabbitMQConfirmedChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    private static AMQP.BasicProperties buildProperties(int qos) {
+        return new AMQP.BasicProperties.Builder()
+                .deliveryMode(qos == 0 ? 1 : 2)
+                .headers(Collections.singletonMap(MQTT_QOS_HEADER, qos))
+                .build();
+    }
+
+    // The MQTT plugin swaps '/' and '.' when translating between MQTT topics and AMQP routing keys.
+    static String toRoutingKey(String topic) {
+        final char[] chars = topic.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] == '/') {
+                chars[i] = '.';
+            } else if (chars[i] == '.') {
+                chars[i] = '/';
+            }
+        }
+        return new String(chars);
+    }
+}
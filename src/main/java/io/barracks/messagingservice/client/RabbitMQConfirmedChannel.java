@@ -0,0 +1,161 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.client;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import io.barracks.messagingservice.client.exception.RabbitMQClientException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A long-lived AMQP channel in publisher-confirm mode. Outstanding publishes are tracked by delivery tag so that a
+ * single broker ack with {@code multiple} set completes a whole batch of futures at once.
+ */
+@Slf4j
+class RabbitMQConfirmedChannel {
+
+    private final ConnectionFactory connectionFactory;
+
+    private final Semaphore inFlight;
+
+    // One map per opened channel, delivery tags restart at 1 on every new channel
+    private volatile ConcurrentNavigableMap<Long, CompletableFuture<Void>> outstanding = new ConcurrentSkipListMap<>();
+
+    private Channel channel;
+
+    RabbitMQConfirmedChannel(ConnectionFactory connectionFactory, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("AMQP in-flight window must be at least 1");
+        }
+        this.connectionFactory = connectionFactory;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    CompletableFuture<Void> publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+        result.whenComplete((ignored, e) -> inFlight.release());
+        try {
+            synchronized (this) {
+                final Channel opened = ensureOpened();
+                final long deliveryTag = opened.getNextPublishSeqNo();
+                outstanding.put(deliveryTag, result);
+                try {
+                    opened.basicPublish(exchange, routingKey, properties, body);
+                } catch (IOException | RuntimeException e) {
+                    outstanding.remove(deliveryTag);
+                    throw e;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(new RabbitMQClientException("Failed to publish on " + routingKey, e));
+        }
+        return result;
+    }
+
+    synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException | TimeoutException | RuntimeException e) {
+            log.warn("Error while closing AMQP publishing channel", e);
+        } finally {
+            channel = null;
+            failOutstanding(outstanding, new RabbitMQClientException("AMQP publishing channel closed"));
+        }
+    }
+
+    private Channel ensureOpened() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            if (channel != null) {
+                failOutstanding(outstanding, new RabbitMQClientException("AMQP publishing channel was closed by the broker"));
+            }
+            final ConcurrentNavigableMap<Long, CompletableFuture<Void>> pending = new ConcurrentSkipListMap<>();
+            final Channel created = connectionFactory.createConnection().createChannel(false);
+            created.confirmSelect();
+            created.addConfirmListener(new ConfirmListener() {
+                @Override
+                public void handleAck(long deliveryTag, boolean multiple) {
+                    confirmed(pending, deliveryTag, multiple).forEach(future -> future.complete(null));
+                }
+
+                @Override
+                public void handleNack(long deliveryTag, boolean multiple) {
+                    confirmed(pending, deliveryTag, multiple).forEach(future -> future.completeExceptionally(
+                            new RabbitMQClientException("Message " + deliveryTag + " was rejected by the broker")
+                    ));
+                }
+            });
+            // Confirms never arrive once the channel or its connection is gone, fail whatever is still waiting
+            created.addShutdownListener(cause -> failOutstanding(
+                    pending, new RabbitMQClientException("AMQP publishing channel was shut down", cause)
+            ));
+            outstanding = pending;
+            channel = created;
+        }
+        return channel;
+    }
+
+    private static List<CompletableFuture<Void>> confirmed(
+            ConcurrentNavigableMap<Long, CompletableFuture<Void>> pending, long deliveryTag, boolean multiple
+    ) {
+        final Map<Long, CompletableFuture<Void>> batch = multiple
+                ? pending.headMap(deliveryTag, true)
+                : pending.subMap(deliveryTag, true, deliveryTag, true);
+        final List<CompletableFuture<Void>> futures = new ArrayList<>(batch.values());
+        batch.clear();
+        return futures;
+    }
+
+    private static void failOutstanding(ConcurrentNavigableMap<Long, CompletableFuture<Void>> pending, Exception cause) {
+        for (Long deliveryTag : pending.keySet()) {
+            final CompletableFuture<Void> future = pending.remove(deliveryTag);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+}
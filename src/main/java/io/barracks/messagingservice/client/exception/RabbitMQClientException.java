@@ -28,4 +28,8 @@ public class RabbitMQClientException extends RuntimeException {
     public RabbitMQClientException(String message) {
         super(message);
     }
+
+    public RabbitMQClientException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
@@ -22,12 +22,101 @@
  * SOFTWARE.
  */
 
+
 package io.barracks.messagingservice.config;
 
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Configuration
 @EnableAsync
 public class AsyncConfig {
+
+    public static final String BROADCAST_EXECUTOR = "broadcastExecutor";
+
+    public static final String PAGE_FETCH_EXECUTOR = "pageFetchExecutor";
+
+    public static final String CONTINUATION_EXECUTOR = "broadcastContinuationExecutor";
+
+    private final AtomicLong rejectedBroadcasts = new AtomicLong();
+
+    @Bean(name = BROADCAST_EXECUTOR)
+    public ThreadPoolTaskExecutor broadcastExecutor(
+            @Value("${io.barracks.messaging.executor.core_size}") int coreSize,
+            @Value("${io.barracks.messaging.executor.max_size}") int maxSize,
+            @Value("${io.barracks.messaging.executor.queue_capacity}") int queueCapacity
+    ) {
+        final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(coreSize);
+        executor.setMaxPoolSize(maxSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("broadcast-");
+        executor.setRejectedExecutionHandler(countingAbortPolicy());
+        return executor;
+    }
+
+    // Page fetches never queue: when every thread is busy the broadcast walks its pages inline instead.
+    @Bean(name = PAGE_FETCH_EXECUTOR)
+    public ThreadPoolTaskExecutor pageFetchExecutor(
+            @Value("${io.barracks.messaging.fetch_executor.core_size}") int coreSize,
+            @Value("${io.barracks.messaging.fetch_executor.max_size}") int maxSize
+    ) {
+        final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(coreSize);
+        executor.setMaxPoolSize(maxSize);
+        executor.setQueueCapacity(0);
+        executor.setThreadNamePrefix("page-fetch-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        return executor;
+    }
+
+    // Running broadcasts carry on here once a page or a publication settles. The queue is unbounded so that a burst of
+    // new broadcasts, turned away by the bounded broadcast executor, never fails the broadcasts already admitted.
+    @Bean(name = CONTINUATION_EXECUTOR)
+    public ThreadPoolTaskExecutor broadcastContinuationExecutor(
+            @Value("${io.barracks.messaging.continuation_executor.size}") int size
+    ) {
+        final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(size);
+        executor.setMaxPoolSize(size);
+        executor.setThreadNamePrefix("broadcast-continuation-");
+        return executor;
+    }
+
+    @Bean
+    public PublicMetrics broadcastExecutorMetrics(
+            @Qualifier(BROADCAST_EXECUTOR) ThreadPoolTaskExecutor broadcastExecutor,
+            @Qualifier(PAGE_FETCH_EXECUTOR) ThreadPoolTaskExecutor pageFetchExecutor,
+            @Qualifier(CONTINUATION_EXECUTOR) ThreadPoolTaskExecutor continuationExecutor
+    ) {
+        return () -> Arrays.asList(
+                new Metric<>("broadcast.executor.active", broadcastExecutor.getActiveCount()),
+                new Metric<>("broadcast.executor.pool.size", broadcastExecutor.getPoolSize()),
+                new Metric<>("broadcast.executor.queue.size", broadcastExecutor.getThreadPoolExecutor().getQueue().size()),
+                new Metric<>("broadcast.executor.rejected", rejectedBroadcasts.get()),
+                new Metric<>("fetch.executor.active", pageFetchExecutor.getActiveCount()),
+                new Metric<>("fetch.executor.pool.size", pageFetchExecutor.getPoolSize()),
+                new Metric<>("continuation.executor.active", continuationExecutor.getActiveCount()),
+                new Metric<>("continuation.executor.queue.size", continuationExecutor.getThreadPoolExecutor().getQueue().size())
+        );
+    }
+
+    private RejectedExecutionHandler countingAbortPolicy() {
+        final RejectedExecutionHandler abortPolicy = new ThreadPoolExecutor.AbortPolicy();
+        return (runnable, executor) -> {
+            rejectedBroadcasts.incrementAndGet();
+            abortPolicy.rejectedExecution(runnable, executor);
+        };
+    }
 }
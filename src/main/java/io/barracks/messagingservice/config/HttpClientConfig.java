@@ -0,0 +1,127 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.config;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.client.RestTemplateCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replaces the default HttpURLConnection transport of the rest templates built from the shared RestTemplateBuilder
+ * by a keep-alive connection pool, so that device pages and token lookups reuse their sockets.
+ */
+@Configuration
+@ConditionalOnProperty(name = "io.barracks.http.pooled.enabled", havingValue = "true")
+public class HttpClientConfig {
+
+    // Route overrides are "<scheme>://<host>[:<port>]=<max>" entries, routes not listed get max_per_route
+    @Bean
+    public PoolingHttpClientConnectionManager httpConnectionManager(
+            @Value("${io.barracks.http.pooled.max_total}") int maxTotal,
+            @Value("${io.barracks.http.pooled.max_per_route}") int maxPerRoute,
+            @Value("${io.barracks.http.pooled.route_max}") String[] routeMaxima
+    ) {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        for (String routeMax : routeMaxima) {
+            if (routeMax.trim().isEmpty()) {
+                continue;
+            }
+            final int separator = routeMax.lastIndexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("HTTP route limit '" + routeMax + "' is not of the form <url>=<max>");
+            }
+            connectionManager.setMaxPerRoute(toRoute(routeMax.substring(0, separator).trim()), Integer.parseInt(routeMax.substring(separator + 1).trim()));
+        }
+        return connectionManager;
+    }
+
+    @Bean
+    public CloseableHttpClient pooledHttpClient(
+            PoolingHttpClientConnectionManager httpConnectionManager,
+            @Value("${io.barracks.http.pooled.connect_timeout}") int connectTimeout,
+            @Value("${io.barracks.http.pooled.read_timeout}") int readTimeout,
+            @Value("${io.barracks.http.pooled.idle_timeout}") long idleTimeout,
+            @Value("${io.barracks.http.pooled.gzip}") boolean gzip
+    ) {
+        final HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(httpConnectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setConnectionRequestTimeout(connectTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        if (!gzip) {
+            builder.disableContentCompression();
+        }
+        return builder.build();
+    }
+
+    @Bean
+    public RestTemplateCustomizer pooledHttpRestTemplateCustomizer(CloseableHttpClient pooledHttpClient) {
+        return restTemplate -> restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(pooledHttpClient));
+    }
+
+    // Routes are planned with an explicit port, the default one of the scheme when the URL has none
+    static HttpRoute toRoute(String url) {
+        final URI uri = URI.create(url);
+        final boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        final int port = uri.getPort() > 0 ? uri.getPort() : (secure ? 443 : 80);
+        return new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+    }
+
+    @Bean
+    public PublicMetrics httpConnectionPoolMetrics(PoolingHttpClientConnectionManager httpConnectionManager) {
+        return () -> {
+            final PoolStats stats = httpConnectionManager.getTotalStats();
+            return Arrays.asList(
+                    new Metric<>("http.pool.leased", stats.getLeased()),
+                    new Metric<>("http.pool.available", stats.getAvailable()),
+                    new Metric<>("http.pool.pending", stats.getPending()),
+                    new Metric<>("http.pool.max", stats.getMax())
+            );
+        };
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import io.barracks.messagingservice.model.BroadcastJob;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.OffsetDateTime;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * In-memory registry of broadcast jobs. Finished jobs are kept for {@code retention} milliseconds, and the oldest
+ * finished jobs are evicted first whenever the registry grows past {@code maxSize}. Running jobs are never evicted.
+ * Jobs have to be completed through the registry so that finished jobs are kept in the order they finished.
+ */
+@Component
+public class BroadcastJobRegistry {
+
+    private final Map<String, BroadcastJob> jobs = new ConcurrentHashMap<>();
+
+    private final Deque<BroadcastJob> finishedJobs = new ConcurrentLinkedDeque<>();
+
+    private final long retention;
+
+    private final int maxSize;
+
+    @Autowired
+    public BroadcastJobRegistry(
+            @Value("${io.barracks.messaging.jobs.retention}") long retention,
+            @Value("${io.barracks.messaging.jobs.max_size}") int maxSize
+    ) {
+        this.retention = retention;
+        this.maxSize = maxSize;
+    }
+
+    public BroadcastJob register(String userId) {
+        evict();
+        final BroadcastJob job = new BroadcastJob(userId);
+        jobs.put(job.getId(), job);
+        return job;
+    }
+
+    public void complete(BroadcastJob job, boolean success) {
+        job.complete(success);
+        finishedJobs.addLast(job);
+    }
+
+    public void remove(BroadcastJob job) {
+        jobs.remove(job.getId());
+    }
+
+    public Optional<BroadcastJob> find(String userId, String jobId) {
+        return Optional.ofNullable(jobs.get(jobId))
+                .filter(job -> job.getUserId().equals(userId));
+    }
+
+    int size() {
+        return jobs.size();
+    }
+
+    synchronized void evict() {
+        final OffsetDateTime expiration = OffsetDateTime.now().minusNanos(retention * 1_000_000L);
+        BroadcastJob oldest = finishedJobs.peekFirst();
+        while (oldest != null && (oldest.getFinished().isBefore(expiration) || jobs.size() >= maxSize)) {
+            finishedJobs.pollFirst();
+            jobs.remove(oldest.getId());
+            oldest = finishedJobs.peekFirst();
+        }
+    }
+}
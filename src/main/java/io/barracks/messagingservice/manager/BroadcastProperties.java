@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tuning of the way broadcasts enumerate and publish, bound from the io.barracks.messaging properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "io.barracks.messaging")
+@Getter
+public class BroadcastProperties {
+
+    private final Prefetch prefetch = new Prefetch();
+
+    private final Enumeration enumeration = new Enumeration();
+
+    private final Dedup dedup = new Dedup();
+
+    private final FilterUnion filterUnion = new FilterUnion();
+
+    @Getter
+    @Setter
+    public static class Prefetch {
+        // Pages fetched ahead of the one being published, 0 to fetch them one at a time
+        private int depth = 0;
+    }
+
+    @Getter
+    @Setter
+    public static class Enumeration {
+        // "keyset", "parallel" or "async"
+        private String mode = "keyset";
+        private int parallelism = 1;
+    }
+
+    @Getter
+    @Setter
+    public static class Dedup {
+        private int memoryThreshold = 100000;
+    }
+
+    @Getter
+    @Setter
+    public static class FilterUnion {
+        private int maxQueryLength = 2048;
+    }
+}
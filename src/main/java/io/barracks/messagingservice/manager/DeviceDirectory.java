@@ -0,0 +1,178 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.barracks.messagingservice.client.DeviceServiceClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local copy of the devices of the most recently broadcast to users, bounded by its total size in bytes.
+ * Since a device's firstSeen date never changes and new devices are always seen after the existing ones, a
+ * directory is brought up to date by asking only for the devices sorted after its last one. Deleted devices are
+ * only dropped when the directory gets older than its maximum age and is rebuilt from scratch.
+ */
+@Component
+@Slf4j
+public class DeviceDirectory implements PublicMetrics {
+
+    private final DeviceServiceClient deviceServiceClient;
+
+    private final PageSizePolicy pageSizePolicy;
+
+    private final boolean enabled;
+
+    private final long maxAge;
+
+    private final Cache<String, TenantDirectory> directories;
+
+    // Concurrent broadcasts of the same user share the refresh in progress, other users never wait for it
+    private final ConcurrentMap<String, CompletableFuture<TenantDirectory>> refreshes = new ConcurrentHashMap<>();
+
+    private final AtomicLong fullBuilds = new AtomicLong();
+
+    private final AtomicLong incrementalRefreshes = new AtomicLong();
+
+    @Autowired
+    public DeviceDirectory(
+            DeviceServiceClient deviceServiceClient,
+            PageSizePolicy pageSizePolicy,
+            @Value("${io.barracks.messaging.directory.enabled}") boolean enabled,
+            @Value("${io.barracks.messaging.directory.max_age}") long maxAge,
+            @Value("${io.barracks.messaging.directory.max_bytes}") long maxBytes
+    ) {
+        this.deviceServiceClient = deviceServiceClient;
+        this.pageSizePolicy = pageSizePolicy;
+        this.enabled = enabled;
+        this.maxAge = maxAge;
+        this.directories = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .<String, TenantDirectory>weigher((userId, directory) -> directory.weight())
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the devices of the user seen before now, fetching only the ones missing from the local copy
+     */
+    TenantDirectory getDirectory(String userId) {
+        final CompletableFuture<TenantDirectory> created = new CompletableFuture<>();
+        final CompletableFuture<TenantDirectory> running = refreshes.putIfAbsent(userId, created);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            final TenantDirectory updated = refresh(userId);
+            created.complete(updated);
+            return updated;
+        } catch (RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            refreshes.remove(userId, created);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final long devices = directories.asMap().values().stream().mapToLong(TenantDirectory::size).sum();
+        return Arrays.asList(
+                new Metric<>("directory.tenants", directories.estimatedSize()),
+                new Metric<>("directory.devices", devices),
+                new Metric<>("directory.builds", fullBuilds.get()),
+                new Metric<>("directory.refreshes", incrementalRefreshes.get())
+        );
+    }
+
+    private TenantDirectory refresh(String userId) {
+        final long now = System.currentTimeMillis();
+        final TenantDirectory current = directories.getIfPresent(userId);
+        final TenantDirectory.Builder builder;
+        if (current == null || now - current.getBuiltAt() > maxAge) {
+            builder = TenantDirectory.builder(now);
+            fullBuilds.incrementAndGet();
+        } else {
+            builder = current.toBuilder();
+            incrementalRefreshes.incrementAndGet();
+        }
+        fetchNewDevices(userId, builder);
+        final TenantDirectory updated = builder.build();
+        if (updated != current) {
+            directories.put(userId, updated);
+        }
+        return updated;
+    }
+
+    private void fetchNewDevices(String userId, TenantDirectory.Builder builder) {
+        final JsonNode seenBeforeNow = buildFirstSeenBeforeQuery(ZonedDateTime.now().format(DateTimeFormatter.ISO_INSTANT));
+        new KeysetDevicePageSource(deviceServiceClient, userId, seenBeforeNow, pageSizePolicy).forEachEntryPage(
+                builder.getHighWaterFirstSeen(),
+                builder.getHighWaterUnitId(),
+                (unitId, firstSeen) -> builder.add(unitId, toEpochMilli(firstSeen)),
+                page -> {
+                    if (page.getCount() > 0) {
+                        builder.setHighWater(page.getLastUnitId(), page.getLastFirstSeen());
+                    }
+                }
+        );
+    }
+
+    private static long toEpochMilli(CharSequence firstSeen) {
+        return firstSeen.length() == 0 ? 0 : OffsetDateTime.parse(firstSeen).toInstant().toEpochMilli();
+    }
+
+    private static JsonNode buildFirstSeenBeforeQuery(String date) {
+        final JsonNodeFactory jsonNodeFactory = JsonNodeFactory.instance;
+        return jsonNodeFactory.objectNode()
+                .set("lt", jsonNodeFactory.objectNode().put("firstSeen", date));
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+interface DevicePageSource {
+
+    void forEachPage(DevicePageHandler handler) throws InterruptedException;
+
+    // Each page is handed over once the publications of the previous one are settled. Sources walking from a thread
+    // of their own only return once the walk is over.
+    default CompletableFuture<Void> forEachPageAsync(Function<DevicePage, CompletableFuture<Void>> handler) throws InterruptedException {
+        forEachPage(page -> handler.apply(page).join());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @FunctionalInterface
+    interface DevicePageHandler {
+        void accept(DevicePage page) throws InterruptedException;
+    }
+}
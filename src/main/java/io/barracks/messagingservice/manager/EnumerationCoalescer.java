@@ -0,0 +1,197 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Lets broadcasts to the same audience share a single device enumeration. The first broadcast waits for the join
+ * window to elapse, then walks the pages once and hands every page to each broadcast that joined in the meantime.
+ * Broadcasts arriving once the walk has started get an enumeration of their own, as they would miss its first pages.
+ * Only the join window holds the calling thread, the walk itself holds one for as long as its source needs to.
+ */
+@Component
+@Slf4j
+public class EnumerationCoalescer implements PublicMetrics {
+
+    private final long window;
+
+    private final ConcurrentMap<String, SharedEnumeration> openEnumerations = new ConcurrentHashMap<>();
+
+    private final AtomicLong walks = new AtomicLong();
+
+    private final AtomicLong joins = new AtomicLong();
+
+    @Autowired
+    public EnumerationCoalescer(@Value("${io.barracks.messaging.coalescing.window}") long window) {
+        this.window = window;
+    }
+
+    /**
+     * Calls the handler for each page of the audience, the returned future completing once the handler's publications
+     * are settled.
+     */
+    CompletableFuture<Void> enumerate(String audienceKey, Supplier<DevicePageSource> sourceSupplier, Function<DevicePage, CompletableFuture<Void>> handler) throws InterruptedException {
+        if (window <= 0) {
+            walks.incrementAndGet();
+            return sourceSupplier.get().forEachPageAsync(handler);
+        }
+        final SharedEnumeration created = new SharedEnumeration(handler);
+        while (true) {
+            final SharedEnumeration existing = openEnumerations.get(audienceKey);
+            if (existing == null) {
+                if (openEnumerations.putIfAbsent(audienceKey, created) == null) {
+                    break;
+                }
+            } else {
+                final Subscriber joined = existing.join(handler);
+                if (joined != null) {
+                    joins.incrementAndGet();
+                    return joined.done;
+                }
+                if (openEnumerations.replace(audienceKey, existing, created)) {
+                    break;
+                }
+            }
+        }
+        InterruptedException interruption = null;
+        try {
+            Thread.sleep(window);
+        } catch (InterruptedException e) {
+            interruption = e;
+        }
+        final List<Subscriber> subscribers = created.close();
+        openEnumerations.remove(audienceKey, created);
+        if (interruption != null) {
+            final IllegalStateException failure = new IllegalStateException("Interrupted before enumerating devices", interruption);
+            subscribers.forEach(subscriber -> subscriber.done.completeExceptionally(failure));
+            throw interruption;
+        }
+        walks.incrementAndGet();
+        walk(sourceSupplier, subscribers);
+        return created.leader.done;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("enumeration.walks", walks.get()),
+                new Metric<>("enumeration.joins", joins.get())
+        );
+    }
+
+    // A subscriber failing to handle a page stops receiving pages, the others carry on
+    private static void walk(Supplier<DevicePageSource> sourceSupplier, List<Subscriber> subscribers) {
+        final List<Subscriber> active = new CopyOnWriteArrayList<>(subscribers);
+        try {
+            sourceSupplier.get().forEachPageAsync(page -> {
+                final List<CompletableFuture<Void>> publications = new ArrayList<>(active.size());
+                for (Subscriber subscriber : active) {
+                    try {
+                        publications.add(subscriber.handler.apply(page).whenComplete((ignored, e) -> {
+                            if (e != null) {
+                                subscriber.done.completeExceptionally(e);
+                            }
+                        }));
+                    } catch (RuntimeException e) {
+                        subscriber.done.completeExceptionally(e);
+                    }
+                }
+                return CompletableFuture.allOf(publications.toArray(new CompletableFuture[publications.size()]))
+                        .exceptionally(e -> null)
+                        .thenRun(() -> active.removeIf(subscriber -> subscriber.done.isDone()));
+            }).whenComplete((ignored, e) -> {
+                if (e == null) {
+                    subscribers.forEach(subscriber -> subscriber.done.complete(null));
+                } else {
+                    fail(subscribers, e instanceof CompletionException ? e.getCause() : e);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(subscribers, new IllegalStateException("Interrupted while enumerating devices", e));
+        } catch (RuntimeException e) {
+            fail(subscribers, e);
+        }
+    }
+
+    private static void fail(List<Subscriber> subscribers, Throwable cause) {
+        log.error("Shared enumeration failed", cause);
+        subscribers.forEach(subscriber -> subscriber.done.completeExceptionally(cause));
+    }
+
+    private static final class Subscriber {
+        private final Function<DevicePage, CompletableFuture<Void>> handler;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Subscriber(Function<DevicePage, CompletableFuture<Void>> handler) {
+            this.handler = handler;
+        }
+    }
+
+    private static final class SharedEnumeration {
+        private final List<Subscriber> subscribers = new ArrayList<>();
+        private final Subscriber leader;
+        private boolean closed;
+
+        private SharedEnumeration(Function<DevicePage, CompletableFuture<Void>> handler) {
+            leader = new Subscriber(handler);
+            subscribers.add(leader);
+        }
+
+        // Returns null once the walk has started
+        private synchronized Subscriber join(Function<DevicePage, CompletableFuture<Void>> handler) {
+            if (closed) {
+                return null;
+            }
+            final Subscriber subscriber = new Subscriber(handler);
+            subscribers.add(subscriber);
+            return subscriber;
+        }
+
+        private synchronized List<Subscriber> close() {
+            closed = true;
+            return new ArrayList<>(subscribers);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import io.barracks.messagingservice.client.DeviceServiceClient;
+import io.barracks.messagingservice.client.MQTTBrokerClient;
+import io.barracks.messagingservice.model.MessagePayload;
+import io.barracks.messagingservice.model.User;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps group topics, {@code apiKey/filters/<name>}, for the filters listed in the configuration. Each member device
+ * gets a retained membership message on {@code apiKey/<unitId>/groups/<name>} telling its firmware to subscribe to
+ * the group topic, or to unsubscribe once it left the filter. A broadcast to such a filter is then a single
+ * publication, plus one per device that joined too recently to have subscribed. Memberships are re-evaluated periodically, and before a broadcast when they are older than the
+ * refresh interval. Membership messages being retained, group topics stay disabled on brokers which do not support
+ * retained messages.
+ */
+@Component
+@Slf4j
+public class FilterGroupTopics implements PublicMetrics {
+
+    static final String GROUP_TOPIC_PREFIX = "filters/";
+
+    static final String MEMBERSHIP_TOPIC_INFIX = "/groups/";
+
+    private final DeviceServiceClient deviceServiceClient;
+
+    private final MQTTBrokerClient mqttBrokerClient;
+
+    private final DeviceDirectory deviceDirectory;
+
+    private final PageSizePolicy pageSizePolicy;
+
+    // Entries are "<userId>:<filterName>"
+    private final Set<String> groupKeys;
+
+    private final long refreshInterval;
+
+    private final boolean retainedSupported;
+
+    private final ConcurrentMap<String, FilterGroup> groups = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService refresher;
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final AtomicLong joins = new AtomicLong();
+
+    private final AtomicLong leaves = new AtomicLong();
+
+    @Autowired
+    public FilterGroupTopics(
+            DeviceServiceClient deviceServiceClient,
+            MQTTBrokerClient mqttBrokerClient,
+            DeviceDirectory deviceDirectory,
+            PageSizePolicy pageSizePolicy,
+            @Value("${io.barracks.messaging.filter_groups.filters}") String[] groupKeys,
+            @Value("${io.barracks.messaging.filter_groups.refresh_interval}") long refreshInterval
+    ) {
+        this.deviceServiceClient = deviceServiceClient;
+        this.mqttBrokerClient = mqttBrokerClient;
+        this.deviceDirectory = deviceDirectory;
+        this.pageSizePolicy = pageSizePolicy;
+        this.groupKeys = Collections.unmodifiableSet(Arrays.stream(groupKeys)
+                .map(String::trim)
+                .filter(groupKey -> !groupKey.isEmpty())
+                .collect(Collectors.toSet()));
+        this.refreshInterval = refreshInterval;
+        this.retainedSupported = mqttBrokerClient.supportsRetained();
+        if (!retainedSupported && !this.groupKeys.isEmpty()) {
+            log.warn("The broker does not support retained messages, group topics of filters {} are disabled", this.groupKeys);
+        }
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "filter-group-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (retainedSupported && refreshInterval > 0 && !this.groupKeys.isEmpty()) {
+            refresher.scheduleWithFixedDelay(this::refreshAll, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isEnabled(String userId, String filterName) {
+        return retainedSupported && groupKeys.contains(toGroupKey(userId, filterName));
+    }
+
+    /**
+     * @return the topic of the group, relative to the user's topic prefix
+     */
+    String getTopic(String filterName) {
+        return GROUP_TOPIC_PREFIX + filterName;
+    }
+
+    /**
+     * Brings the membership up to date if needed. Devices that join during this call only just got their membership
+     * message and have not subscribed yet, they are returned apart so that the caller publishes to them directly.
+     * The returned sets are read-only snapshots, shared with later calls.
+     */
+    Membership getMembership(User user, String filterName) {
+        final FilterGroup group = groups.computeIfAbsent(toGroupKey(user.getId(), filterName), key -> new FilterGroup(user, filterName));
+        synchronized (group) {
+            if (System.currentTimeMillis() - group.refreshedAt >= refreshInterval) {
+                return refresh(group);
+            }
+            return new Membership(group.members, Collections.emptySet());
+        }
+    }
+
+    // Reads the published snapshots of the groups, a refresh in progress holds their monitor for as long as it talks
+    // to the device service and the broker
+    @Override
+    public Collection<Metric<?>> metrics() {
+        long members = 0;
+        long lastDrift = 0;
+        for (FilterGroup group : groups.values()) {
+            members += group.members.size();
+            lastDrift += group.lastDrift;
+        }
+        return Arrays.asList(
+                new Metric<>("filter_groups.groups", groups.size()),
+                new Metric<>("filter_groups.members", members),
+                new Metric<>("filter_groups.refreshes", refreshes.get()),
+                new Metric<>("filter_groups.joins", joins.get()),
+                new Metric<>("filter_groups.leaves", leaves.get()),
+                new Metric<>("filter_groups.drift", lastDrift)
+        );
+    }
+
+    @PreDestroy
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private void refreshAll() {
+        for (FilterGroup group : groups.values()) {
+            try {
+                synchronized (group) {
+                    refresh(group);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not refresh the group of filter {} for user {}", group.filterName, group.user.getId(), e);
+            }
+        }
+    }
+
+    // Devices whose membership message could not be published are retried on the next refresh.
+    // Devices that entered the filter are returned as joining, whether their membership message went through or not.
+    private Membership refresh(FilterGroup group) {
+        final Set<String> current = evaluate(group.user.getId(), group.filterName);
+        final List<String> joined = current.stream()
+                .filter(unitId -> !group.members.contains(unitId))
+                .collect(Collectors.toList());
+        final List<String> left = group.members.stream()
+                .filter(unitId -> !current.contains(unitId))
+                .collect(Collectors.toList());
+        final Set<String> failedJoins = ConcurrentHashMap.newKeySet();
+        final Set<String> failedLeaves = ConcurrentHashMap.newKeySet();
+        final List<CompletableFuture<Void>> publications = new ArrayList<>(joined.size() + left.size());
+        publications.addAll(publishMembership(group, joined, true, failedJoins));
+        publications.addAll(publishMembership(group, left, false, failedLeaves));
+        CompletableFuture.allOf(publications.toArray(new CompletableFuture[publications.size()]))
+                .exceptionally(e -> null)
+                .join();
+        current.removeAll(failedJoins);
+        current.addAll(failedLeaves);
+        final Set<String> members = Collections.unmodifiableSet(current);
+        final Set<String> subscribed;
+        if (joined.isEmpty()) {
+            subscribed = members;
+        } else {
+            final Set<String> settled = new HashSet<>(current);
+            settled.removeAll(joined);
+            subscribed = Collections.unmodifiableSet(settled);
+        }
+        group.members = members;
+        group.refreshedAt = System.currentTimeMillis();
+        group.lastDrift = joined.size() + left.size();
+        refreshes.incrementAndGet();
+        joins.addAndGet(joined.size() - failedJoins.size());
+        leaves.addAndGet(left.size() - failedLeaves.size());
+        log.debug("Group of filter {} for user {} refreshed, {} joined and {} left", group.filterName, group.user.getId(), joined.size(), left.size());
+        return new Membership(subscribed, Collections.unmodifiableSet(new HashSet<>(joined)));
+    }
+
+    private List<CompletableFuture<Void>> publishMembership(FilterGroup group, List<String> unitIds, boolean member, Set<String> failures) {
+        if (unitIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final JsonNodeFactory jsonNodeFactory = JsonNodeFactory.instance;
+        final String message = jsonNodeFactory.objectNode()
+                .put("topic", group.user.getApiKey() + "/" + getTopic(group.filterName))
+                .put("member", member)
+                .toString();
+        final MessagePayload payload = MessagePayload.of(group.user.getApiKey(), message, true, 1);
+        return unitIds.stream()
+                .map(unitId -> {
+                    try {
+                        return mqttBrokerClient.sendMessageAsync(payload, unitId + MEMBERSHIP_TOPIC_INFIX + group.filterName)
+                                .whenComplete((ignored, e) -> {
+                                    if (e != null) {
+                                        failures.add(unitId);
+                                    }
+                                });
+                    } catch (RuntimeException e) {
+                        failures.add(unitId);
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                })
+                .collect(Collectors.toList());
+    }
+
+    private Set<String> evaluate(String userId, String filterName) {
+        final JsonNode query = deviceServiceClient.getFilterByUserIdAndName(userId, filterName).getQuery();
+        if (deviceDirectory.isEnabled()) {
+            final Optional<DevicePredicate> predicate = FilterQueryCompiler.compile(query);
+            if (predicate.isPresent()) {
+                final TenantDirectory directory = deviceDirectory.getDirectory(userId);
+                return new HashSet<>(directory.getUnitIds(0, directory.size(), predicate.get()));
+            }
+        }
+        final Set<String> members = new HashSet<>();
+        try {
+            new KeysetDevicePageSource(deviceServiceClient, userId, query, pageSizePolicy)
+                    .forEachPage(page -> members.addAll(page.getUnitIds()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while enumerating the devices of filter " + filterName, e);
+        }
+        return members;
+    }
+
+    private static String toGroupKey(String userId, String filterName) {
+        return userId + ":" + filterName;
+    }
+
+    @Getter
+    static final class Membership {
+        // Devices which got their membership message in an earlier refresh, reached through the group topic
+        private final Set<String> subscribed;
+        // Devices which entered the filter during this refresh, to be published to on their own topic
+        private final Set<String> joining;
+
+        private Membership(Set<String> subscribed, Set<String> joining) {
+            this.subscribed = subscribed;
+            this.joining = joining;
+        }
+    }
+
+    private static final class FilterGroup {
+        private final User user;
+        private final String filterName;
+        // Replaced, never modified, by each refresh
+        private volatile Set<String> members = Collections.emptySet();
+        private long refreshedAt = Long.MIN_VALUE / 2;
+        private volatile long lastDrift;
+
+        private FilterGroup(User user, String filterName) {
+            this.user = user;
+            this.filterName = filterName;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Turns a filter query into a predicate over the devices of a {@link TenantDirectory}. Only the operators and fields
+ * the directory can answer for are compiled: {@code and}, {@code or}, {@code lt}, {@code gt}, {@code eq} and
+ * {@code in} over {@code unitId} and {@code firstSeen}. Any other query is left to the device service.
+ */
+final class FilterQueryCompiler {
+
+    private FilterQueryCompiler() {
+    }
+
+    static Optional<DevicePredicate> compile(JsonNode query) {
+        return Optional.ofNullable(compileQuery(query));
+    }
+
+    // Each method returns null as soon as a part of the query is not supported
+    private static DevicePredicate compileQuery(JsonNode query) {
+        if (query == null || !query.isObject() || query.size() == 0) {
+            return null;
+        }
+        final List<DevicePredicate> clauses = new ArrayList<>(query.size());
+        final Iterator<Map.Entry<String, JsonNode>> operators = query.fields();
+        while (operators.hasNext()) {
+            final Map.Entry<String, JsonNode> operator = operators.next();
+            final DevicePredicate clause = compileOperator(operator.getKey(), operator.getValue());
+            if (clause == null) {
+                return null;
+            }
+            clauses.add(clause);
+        }
+        return allOf(clauses);
+    }
+
+    private static DevicePredicate compileOperator(String operator, JsonNode operand) {
+        switch (operator) {
+            case "and":
+                return compileQueries(operand, true);
+            case "or":
+                return compileQueries(operand, false);
+            case "lt":
+            case "gt":
+            case "eq":
+            case "in":
+                return compileComparisons(operator, operand);
+            default:
+                return null;
+        }
+    }
+
+    private static DevicePredicate compileQueries(JsonNode queries, boolean all) {
+        if (!queries.isArray() || queries.size() == 0) {
+            return null;
+        }
+        final List<DevicePredicate> clauses = new ArrayList<>(queries.size());
+        for (JsonNode query : queries) {
+            final DevicePredicate clause = compileQuery(query);
+            if (clause == null) {
+                return null;
+            }
+            clauses.add(clause);
+        }
+        return all ? allOf(clauses) : anyOf(clauses);
+    }
+
+    private static DevicePredicate compileComparisons(String operator, JsonNode operand) {
+        if (!operand.isObject() || operand.size() == 0) {
+            return null;
+        }
+        final List<DevicePredicate> clauses = new ArrayList<>(operand.size());
+        final Iterator<Map.Entry<String, JsonNode>> fields = operand.fields();
+        while (fields.hasNext()) {
+            final Map.Entry<String, JsonNode> field = fields.next();
+            final DevicePredicate clause;
+            switch (field.getKey()) {
+                case "unitId":
+                    clause = compileUnitIdComparison(operator, field.getValue());
+                    break;
+                case "firstSeen":
+                    clause = compileFirstSeenComparison(operator, field.getValue());
+                    break;
+                default:
+                    clause = null;
+            }
+            if (clause == null) {
+                return null;
+            }
+            clauses.add(clause);
+        }
+        return allOf(clauses);
+    }
+
+    private static DevicePredicate compileUnitIdComparison(String operator, JsonNode value) {
+        if ("in".equals(operator)) {
+            if (!value.isArray()) {
+                return null;
+            }
+            final Set<String> unitIds = new HashSet<>();
+            for (JsonNode unitId : value) {
+                if (!unitId.isTextual()) {
+                    return null;
+                }
+                unitIds.add(unitId.textValue());
+            }
+            return (directory, index) -> unitIds.contains(directory.getUnitId(index));
+        }
+        if (!value.isTextual()) {
+            return null;
+        }
+        final byte[] unitId = value.textValue().getBytes(StandardCharsets.UTF_8);
+        switch (operator) {
+            case "lt":
+                return (directory, index) -> directory.compareUnitId(index, unitId) < 0;
+            case "gt":
+                return (directory, index) -> directory.compareUnitId(index, unitId) > 0;
+            default:
+                return (directory, index) -> directory.compareUnitId(index, unitId) == 0;
+        }
+    }
+
+    private static DevicePredicate compileFirstSeenComparison(String operator, JsonNode value) {
+        if ("in".equals(operator)) {
+            if (!value.isArray()) {
+                return null;
+            }
+            final Set<Long> dates = new HashSet<>();
+            for (JsonNode date : value) {
+                final Long firstSeen = toEpochMilli(date);
+                if (firstSeen == null) {
+                    return null;
+                }
+                dates.add(firstSeen);
+            }
+            return (directory, index) -> dates.contains(directory.getFirstSeen(index));
+        }
+        final Long date = toEpochMilli(value);
+        if (date == null) {
+            return null;
+        }
+        final long firstSeen = date;
+        switch (operator) {
+            case "lt":
+                return (directory, index) -> directory.getFirstSeen(index) < firstSeen;
+            case "gt":
+                return (directory, index) -> directory.getFirstSeen(index) > firstSeen;
+            default:
+                return (directory, index) -> directory.getFirstSeen(index) == firstSeen;
+        }
+    }
+
+    // The directory keeps milliseconds, so finer dates could compare differently than on the device service
+    private static Long toEpochMilli(JsonNode value) {
+        if (!value.isTextual()) {
+            return null;
+        }
+        try {
+            final OffsetDateTime date = OffsetDateTime.parse(value.textValue());
+            return date.getNano() % 1_000_000 == 0 ? date.toInstant().toEpochMilli() : null;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static DevicePredicate allOf(List<DevicePredicate> clauses) {
+        if (clauses.size() == 1) {
+            return clauses.get(0);
+        }
+        final DevicePredicate[] predicates = clauses.toArray(new DevicePredicate[clauses.size()]);
+        return (directory, index) -> {
+            for (DevicePredicate predicate : predicates) {
+                if (!predicate.test(directory, index)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    private static DevicePredicate anyOf(List<DevicePredicate> clauses) {
+        if (clauses.size() == 1) {
+            return clauses.get(0);
+        }
+        final DevicePredicate[] predicates = clauses.toArray(new DevicePredicate[clauses.size()]);
+        return (directory, index) -> {
+            for (DevicePredicate predicate : predicates) {
+                if (predicate.test(directory, index)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import io.barracks.messagingservice.client.DeviceServiceClient;
+import io.barracks.messagingservice.model.BarracksQuery;
+import io.barracks.messagingservice.model.Device;
+import io.barracks.messagingservice.model.DeviceIdPage;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Walks the devices matching a query in (firstSeen, unitId) order, asking each time for the first page of the
+ * devices sorted after the last one seen so that every request costs the same whatever the position in the fleet.
+ * Given a continuation executor, the walk runs without holding a thread instead, each page being requested once the
+ * previous one is handled. Pages fetched that way are handed to the executor, never handled on the HTTP client's I/O
+ * dispatcher.
+ */
+class KeysetDevicePageSource implements DevicePageSource {
+
+    static final Sort SORT = new Sort(Sort.Direction.ASC, "firstSeen", "unitId");
+
+    private final DeviceServiceClient deviceServiceClient;
+
+    private final String userId;
+
+    private final JsonNode baseQuery;
+
+    private final PageSizePolicy pageSizePolicy;
+
+    private final Executor continuationExecutor;
+
+    KeysetDevicePageSource(DeviceServiceClient deviceServiceClient, String userId, JsonNode baseQuery, PageSizePolicy pageSizePolicy) {
+        this(deviceServiceClient, userId, baseQuery, pageSizePolicy, null);
+    }
+
+    KeysetDevicePageSource(DeviceServiceClient deviceServiceClient, String userId, JsonNode baseQuery, PageSizePolicy pageSizePolicy, Executor continuationExecutor) {
+        this.deviceServiceClient = deviceServiceClient;
+        this.userId = userId;
+        this.baseQuery = baseQuery;
+        this.pageSizePolicy = pageSizePolicy;
+        this.continuationExecutor = continuationExecutor;
+    }
+
+    @Override
+    public void forEachPage(DevicePageHandler handler) throws InterruptedException {
+        final List<String> unitIds = new ArrayList<>();
+        walk(null, null, (pageable, query) -> deviceServiceClient.getDeviceIds(userId, pageable, query, unitIds::add), (page, first) -> {
+            handler.accept(new DevicePage(new ArrayList<>(unitIds), first ? page.getTotalElements() : 0));
+            unitIds.clear();
+        });
+    }
+
+    // Walks the devices sorted after the given one, or all of them when there is none. The firstSeen text passed along
+    // each device is only valid during the call, each page is handed over once read.
+    void forEachEntryPage(String afterFirstSeen, String afterUnitId, BiConsumer<String, CharSequence> deviceConsumer, Consumer<DeviceIdPage> pageConsumer) {
+        walk(afterFirstSeen, afterUnitId, (pageable, query) -> deviceServiceClient.getDeviceEntries(userId, pageable, query, deviceConsumer), (page, first) -> pageConsumer.accept(page));
+    }
+
+    private <E extends Exception> void walk(String afterFirstSeen, String afterUnitId, BiFunction<Pageable, BarracksQuery, DeviceIdPage> fetcher, PageCallback<E> callback) throws E {
+        String lastFirstSeen = afterFirstSeen;
+        String lastUnitId = afterUnitId;
+        boolean first = true;
+        boolean lastPage = false;
+        while (!lastPage) {
+            final JsonNode query = lastUnitId == null ? baseQuery : buildAfterDeviceQuery(baseQuery, lastFirstSeen, lastUnitId);
+            final Pageable pageable = new PageRequest(0, pageSizePolicy.getPageSize(), SORT);
+            final long start = System.currentTimeMillis();
+            final DeviceIdPage page = fetcher.apply(pageable, new BarracksQuery(query));
+            pageSizePolicy.record(pageable.getPageSize(), page.getCount(), System.currentTimeMillis() - start);
+            callback.accept(page, first);
+            lastPage = page.getCount() == 0 || page.getTotalPages() <= 1;
+            if (!lastPage && page.getLastFirstSeen() == null) {
+                throw new IllegalStateException("Device " + page.getLastUnitId() + " has no firstSeen date to resume the enumeration from");
+            }
+            lastFirstSeen = page.getLastFirstSeen();
+            lastUnitId = page.getLastUnitId();
+            first = false;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> forEachPageAsync(Function<DevicePage, CompletableFuture<Void>> handler) throws InterruptedException {
+        if (continuationExecutor == null) {
+            return DevicePageSource.super.forEachPageAsync(handler);
+        }
+        return walkAsync(null, handler);
+    }
+
+    private CompletableFuture<Void> walkAsync(Device last, Function<DevicePage, CompletableFuture<Void>> handler) {
+        final JsonNode query = last == null
+                ? baseQuery
+                : buildAfterDeviceQuery(baseQuery, DateTimeFormatter.ISO_INSTANT.format(last.getFirstSeen()), last.getUnitId());
+        final Pageable pageable = new PageRequest(0, pageSizePolicy.getPageSize(), SORT);
+        final long start = System.currentTimeMillis();
+        return deviceServiceClient.getDevicesAsync(userId, pageable, new BarracksQuery(query))
+                .thenComposeAsync(page -> {
+                    final List<Device> devices = new ArrayList<>(page.getContent());
+                    pageSizePolicy.record(pageable.getPageSize(), devices.size(), System.currentTimeMillis() - start);
+                    final CompletableFuture<Void> handled = handler.apply(new DevicePage(
+                            devices.stream().map(Device::getUnitId).collect(Collectors.toList()),
+                            last == null ? page.getMetadata().getTotalElements() : 0
+                    ));
+                    if (devices.isEmpty() || page.getMetadata().getTotalPages() <= 1) {
+                        return handled;
+                    }
+                    final Device next = devices.get(devices.size() - 1);
+                    return handled.thenCompose(ignored -> walkAsync(next, handler));
+                }, continuationExecutor);
+    }
+
+    @FunctionalInterface
+    private interface PageCallback<E extends Exception> {
+        void accept(DeviceIdPage page, boolean first) throws E;
+    }
+
+    // Keyset condition selecting the devices sorted after the given one: (firstSeen, unitId) > (last firstSeen, last unitId)
+    static JsonNode buildAfterDeviceQuery(JsonNode baseQuery, String firstSeen, String unitId) {
+        final JsonNodeFactory jsonNodeFactory = JsonNodeFactory.instance;
+        final ArrayNode sameFirstSeen = jsonNodeFactory.arrayNode()
+                .add(jsonNodeFactory.objectNode().set("eq", jsonNodeFactory.objectNode().put("firstSeen", firstSeen)))
+                .add(jsonNodeFactory.objectNode().set("gt", jsonNodeFactory.objectNode().put("unitId", unitId)));
+        final ArrayNode after = jsonNodeFactory.arrayNode()
+                .add(jsonNodeFactory.objectNode().set("gt", jsonNodeFactory.objectNode().put("firstSeen", firstSeen)))
+                .add(jsonNodeFactory.objectNode().set("and", sameFirstSeen));
+        final ArrayNode child = jsonNodeFactory.arrayNode()
+                .add(baseQuery)
+                .add(jsonNodeFactory.objectNode().set("or", after));
+        return jsonNodeFactory.objectNode()
+                .set("and", child);
+    }
+}
@@ -22,6 +22,7 @@
  * SOFTWARE.
  */
 
+
 package io.barracks.messagingservice.manager;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -29,79 +30,353 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import io.barracks.messagingservice.client.DeviceServiceClient;
 import io.barracks.messagingservice.client.MQTTBrokerClient;
-import io.barracks.messagingservice.client.exception.RabbitMQClientException;
-import io.barracks.messagingservice.model.BarracksQuery;
-import io.barracks.messagingservice.model.Device;
-import io.barracks.messagingservice.model.Filter;
+import io.barracks.messagingservice.config.AsyncConfig;
+import io.barracks.messagingservice.manager.exception.BroadcastJobNotFoundException;
+import io.barracks.messagingservice.manager.exception.InvalidQosException;
+import io.barracks.messagingservice.manager.exception.RetainedMessageNotSupportedException;
+import io.barracks.messagingservice.model.BroadcastJob;
+import io.barracks.messagingservice.model.MessagePayload;
 import io.barracks.messagingservice.model.User;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
-import org.springframework.hateoas.PagedResources;
-import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.stereotype.Service;
 
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.Future;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 @Service
+@Slf4j
 public class MessagingServiceManager {
 
+    static final String PARALLEL_ENUMERATION = "parallel";
+
+    static final String ASYNC_ENUMERATION = "async";
+
     private final MQTTBrokerClient mqttBrokerClient;
 
     private final DeviceServiceClient deviceServiceClient;
 
+    private final TaskExecutor broadcastExecutor;
+
+    private final TaskExecutor continuationExecutor;
+
+    private final AsyncTaskExecutor pageFetchExecutor;
+
+    private final BroadcastJobRegistry broadcastJobRegistry;
+
+    private final PageSizePolicy pageSizePolicy;
+
+    private final DeviceDirectory deviceDirectory;
+
+    private final EnumerationCoalescer enumerationCoalescer;
+
+    private final TenantBroadcastTopics tenantBroadcastTopics;
+
+    private final FilterGroupTopics filterGroupTopics;
+
+    private final int prefetchDepth;
+
+    private final boolean parallelEnumeration;
+
+    private final boolean asyncEnumeration;
+
+    private final int fetchParallelism;
+
+    private final int dedupThreshold;
+
+    private final int maxUnionQueryLength;
+
     @Autowired
-    public MessagingServiceManager(MQTTBrokerClient mqttBrokerClient, DeviceServiceClient deviceServiceClient) {
+    public MessagingServiceManager(
+            MQTTBrokerClient mqttBrokerClient,
+            DeviceServiceClient deviceServiceClient,
+            @Qualifier(AsyncConfig.BROADCAST_EXECUTOR) TaskExecutor broadcastExecutor,
+            @Qualifier(AsyncConfig.CONTINUATION_EXECUTOR) TaskExecutor continuationExecutor,
+            @Qualifier(AsyncConfig.PAGE_FETCH_EXECUTOR) AsyncTaskExecutor pageFetchExecutor,
+            BroadcastJobRegistry broadcastJobRegistry,
+            PageSizePolicy pageSizePolicy,
+            DeviceDirectory deviceDirectory,
+            EnumerationCoalescer enumerationCoalescer,
+            TenantBroadcastTopics tenantBroadcastTopics,
+            FilterGroupTopics filterGroupTopics,
+            BroadcastProperties broadcastProperties
+    ) {
         this.mqttBrokerClient = mqttBrokerClient;
         this.deviceServiceClient = deviceServiceClient;
+        this.broadcastExecutor = broadcastExecutor;
+        this.continuationExecutor = continuationExecutor;
+        this.pageFetchExecutor = pageFetchExecutor;
+        this.broadcastJobRegistry = broadcastJobRegistry;
+        this.pageSizePolicy = pageSizePolicy;
+        this.deviceDirectory = deviceDirectory;
+        this.enumerationCoalescer = enumerationCoalescer;
+        this.tenantBroadcastTopics = tenantBroadcastTopics;
+        this.filterGroupTopics = filterGroupTopics;
+        this.prefetchDepth = broadcastProperties.getPrefetch().getDepth();
+        this.parallelEnumeration = PARALLEL_ENUMERATION.equals(broadcastProperties.getEnumeration().getMode());
+        this.asyncEnumeration = ASYNC_ENUMERATION.equals(broadcastProperties.getEnumeration().getMode());
+        this.fetchParallelism = broadcastProperties.getEnumeration().getParallelism();
+        this.dedupThreshold = broadcastProperties.getDedup().getMemoryThreshold();
+        this.maxUnionQueryLength = broadcastProperties.getFilterUnion().getMaxQueryLength();
     }
 
-    @Async
-    public Future<Boolean> sendMessage(User user, List<String> unitIdList, List<String> filtersList, String message, boolean retained) {
-        boolean success;
+    public BroadcastJob sendMessage(User user, List<String> unitIdList, List<String> filtersList, String message, boolean retained, int qos) {
+        if (qos < 0 || qos > 2) {
+            throw new InvalidQosException(qos);
+        }
+        if (retained && !mqttBrokerClient.supportsRetained()) {
+            throw new RetainedMessageNotSupportedException();
+        }
+        final MessagePayload payload = MessagePayload.of(user.getApiKey(), message, retained, qos);
+        final BroadcastJob job = broadcastJobRegistry.register(user.getId());
         try {
-            if (unitIdList.isEmpty() && filtersList.isEmpty()) {
-                sendMessageToAllDevices(user, message, retained);
+            broadcastExecutor.execute(() -> {
+                final CompletableFuture<Void> broadcast = runBroadcast(job, user, unitIdList, filtersList, payload);
+                // Broadcasts walking their pages from a thread keep their broadcast thread until they are over, so
+                // that the broadcast executor bounds them
+                if (!asyncEnumeration) {
+                    broadcast.exceptionally(e -> null).join();
+                }
+            });
+        } catch (TaskRejectedException e) {
+            broadcastJobRegistry.remove(job);
+            throw e;
+        }
+        return job;
+    }
+
+    public BroadcastJob getJob(User user, String jobId) {
+        return broadcastJobRegistry.find(user.getId(), jobId)
+                .orElseThrow(() -> new BroadcastJobNotFoundException(jobId));
+    }
+
+    // Returns once the broadcast is set up, the returned future completing along with the job. Non-blocking
+    // enumerations carry on from the HTTP and broker callbacks, the other ones are already over.
+    CompletableFuture<Void> runBroadcast(BroadcastJob job, User user, List<String> unitIdList, List<String> filtersList, MessagePayload payload) {
+        job.start();
+        final TargetSet targets = unitIdList.isEmpty() && filtersList.isEmpty() ? null : new TargetSet(dedupThreshold);
+        CompletableFuture<Void> broadcast;
+        try {
+            broadcast = targets == null
+                    ? sendMessageToAllDevices(job, user, payload)
+                    : sendMessageToTargets(job, user, targets, unitIdList, filtersList, payload);
+        } catch (RuntimeException e) {
+            broadcast = new CompletableFuture<>();
+            broadcast.completeExceptionally(e);
+        }
+        return broadcast.whenComplete((ignored, e) -> {
+            if (targets != null) {
+                targets.close();
+            }
+            if (e != null) {
+                log.error("Broadcast {} for user {} failed", job.getId(), user.getId(), e);
+            }
+            broadcastJobRegistry.complete(job, e == null);
+        });
+    }
+
+    // A single enumeration never yields a device twice, so it needs no target set
+    CompletableFuture<Void> sendMessageToAllDevices(BroadcastJob job, User user, MessagePayload payload) {
+        if (tenantBroadcastTopics.isEnabled(user.getId())) {
+            return publishToTenantTopicAsync(job, payload);
+        } else if (deviceDirectory.isEnabled()) {
+            return publishToDirectory(job, null, deviceDirectory.getDirectory(user.getId()), null, payload);
+        } else {
+            return publishToDevicePages(job, user, null, payload, null);
+        }
+    }
+
+    // The listed devices are registered as targets before the filters are enumerated, so the filters skip them
+    private CompletableFuture<Void> sendMessageToTargets(BroadcastJob job, User user, TargetSet targets, List<String> unitIdList, List<String> filtersList, MessagePayload payload) {
+        final List<String> enumeratedFilters = publishToFilterGroups(job, user, targets, unitIdList, filtersList, payload);
+        job.addTargeted(unitIdList.size());
+        final CompletableFuture<Void> listed = publishToDevicesAsync(job, targets, unitIdList, payload);
+        if (enumeratedFilters.isEmpty()) {
+            return listed;
+        }
+        return CompletableFuture.allOf(listed, sendMessageToDevicesInFilters(job, user, targets, enumeratedFilters, payload));
+    }
+
+    CompletableFuture<Void> sendMessageToDevicesInFilters(BroadcastJob job, User user, TargetSet targets, List<String> names, MessagePayload payload) {
+        final List<JsonNode> filterQueries = getFilterQueries(user, names);
+        final Optional<DevicePredicate> predicate = compileForDirectory(filterQueries);
+        if (predicate.isPresent()) {
+            return publishToDirectory(job, targets, deviceDirectory.getDirectory(user.getId()), predicate.get(), payload);
+        }
+        // Filters enumerated one by one follow each other on the continuation executor, not on the broker ack thread
+        // settling the previous enumeration
+        final List<JsonNode> queries = buildFilterEnumerationQueries(user, names, filterQueries);
+        CompletableFuture<Void> enumerations = publishToDevicePages(job, user, targets, payload, queries.get(0));
+        for (JsonNode query : queries.subList(1, queries.size())) {
+            enumerations = enumerations.thenComposeAsync(previous -> publishToDevicePages(job, user, targets, payload, query), continuationExecutor);
+        }
+        return enumerations;
+    }
+
+    private List<JsonNode> getFilterQueries(User user, List<String> names) {
+        return names.stream()
+                .map(name -> deviceServiceClient.getFilterByUserIdAndName(user.getId(), name).getQuery())
+                .collect(Collectors.toList());
+    }
+
+    // Filters only made of conditions the directory knows about are evaluated locally instead of enumerated remotely
+    private Optional<DevicePredicate> compileForDirectory(List<JsonNode> filterQueries) {
+        if (!deviceDirectory.isEnabled()) {
+            return Optional.empty();
+        }
+        return FilterQueryCompiler.compile(buildUnionQuery(filterQueries));
+    }
+
+    // One audience for the union of the filters, unless the combined query is too long to send
+    private List<JsonNode> buildFilterEnumerationQueries(User user, List<String> names, List<JsonNode> filterQueries) {
+        if (filterQueries.size() > 1) {
+            final JsonNode union = buildUnionQuery(filterQueries);
+            if (union.toString().length() <= maxUnionQueryLength) {
+                return Collections.singletonList(union);
+            }
+            log.debug("Union of filters {} for user {} is too long, enumerating them one by one", names, user.getId());
+        }
+        return filterQueries;
+    }
+
+    // Concurrent broadcasts to the same audience share the enumeration, each one publishing its own message
+    private CompletableFuture<Void> publishToDevicePages(BroadcastJob job, User user, TargetSet targets, MessagePayload payload, JsonNode audience) {
+        final String audienceKey = user.getId() + ":" + (audience == null ? "*" : audience.toString());
+        try {
+            return enumerationCoalescer.enumerate(
+                    audienceKey,
+                    () -> buildDevicePageSource(user, audience == null ? buildFirstSeenBeforeNowQuery() : buildFirstSeenBeforeNowQuery(audience)),
+                    page -> {
+                        job.addTargeted(page.getTargeted());
+                        return publishToDevicesAsync(job, targets, page.getUnitIds(), payload);
+                    }
+            );
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while enumerating devices", e);
+        }
+    }
+
+    // Filters materialized as group topics get a single publication, devices that only just joined are published to
+    // directly. The other filters are returned to be enumerated. Subscribed members are only registered as targets when
+    // listed devices or enumerated filters could reach them again.
+    private List<String> publishToFilterGroups(BroadcastJob job, User user, TargetSet targets, List<String> unitIdList, List<String> filters, MessagePayload payload) {
+        final List<String> enumerated = new ArrayList<>(filters.size());
+        final List<String> groupTopics = new ArrayList<>();
+        final List<Set<String>> subscribed = new ArrayList<>();
+        final Set<String> joining = new LinkedHashSet<>();
+        for (String filter : filters) {
+            if (filterGroupTopics.isEnabled(user.getId(), filter)) {
+                final FilterGroupTopics.Membership membership = filterGroupTopics.getMembership(user, filter);
+                subscribed.add(membership.getSubscribed());
+                joining.addAll(membership.getJoining());
+                groupTopics.add(filterGroupTopics.getTopic(filter));
             } else {
-                unitIdList.forEach(unitId -> mqttBrokerClient.sendMessage(user.getApiKey(), unitId, message, retained));
-                filtersList.forEach(filterName -> sendMessageToDevicesInFilter(user, filterName, message, retained));
+                enumerated.add(filter);
             }
-            success = true;
-        } catch (RabbitMQClientException e) {
-            success = false;
         }
-        return new AsyncResult<>(success);
+        if (!unitIdList.isEmpty() || !enumerated.isEmpty()) {
+            subscribed.forEach(members -> members.forEach(targets::add));
+        }
+        if (!groupTopics.isEmpty()) {
+            job.addTargeted(groupTopics.size());
+            publishToDevices(job, null, groupTopics, payload);
+        }
+        if (!joining.isEmpty()) {
+            job.addTargeted(joining.size());
+            publishToDevices(job, targets, new ArrayList<>(joining), payload);
+        }
+        return enumerated;
+    }
+
+    // The tenant topic is counted as a single target
+    private CompletableFuture<Void> publishToTenantTopicAsync(BroadcastJob job, MessagePayload payload) {
+        job.addTargeted(1);
+        return publishToDevicesAsync(job, null, Collections.singletonList(tenantBroadcastTopics.getName()), payload);
+    }
+
+    // Publishes to the devices of the directory matching the predicate, or to all of them when there is none, one chunk
+    // once the previous one is settled. Chunks continue on the continuation executor, publishing from a broker ack
+    // thread would block the only thread able to free the in-flight window.
+    private CompletableFuture<Void> publishToDirectory(BroadcastJob job, TargetSet targets, TenantDirectory directory, DevicePredicate predicate, MessagePayload payload) {
+        final int chunkSize = pageSizePolicy.getPageSize();
+        CompletableFuture<Void> published = CompletableFuture.completedFuture(null);
+        for (int from = 0; from < directory.size(); from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(directory.size(), from + chunkSize);
+            published = published.thenComposeAsync(
+                    ignored -> publishDirectoryChunkAsync(job, targets, directory, predicate, payload, start, end),
+                    continuationExecutor
+            );
+        }
+        return published;
+    }
+
+    private CompletableFuture<Void> publishDirectoryChunkAsync(BroadcastJob job, TargetSet targets, TenantDirectory directory, DevicePredicate predicate, MessagePayload payload, int start, int end) {
+        final List<String> unitIds = predicate == null ? directory.getUnitIds(start, end) : directory.getUnitIds(start, end, predicate);
+        job.addTargeted(unitIds.size());
+        return publishToDevicesAsync(job, targets, unitIds, payload);
     }
 
-    void sendMessageToAllDevices(User user, String message, boolean retained) {
-        final BarracksQuery query = new BarracksQuery(buildFirstSeenBeforeNowQuery());
-        sendMessageToNextDevicesPages(user, message, retained, query, 0);
+    private DevicePageSource buildDevicePageSource(User user, JsonNode baseQuery) {
+        if (asyncEnumeration) {
+            return new KeysetDevicePageSource(deviceServiceClient, user.getId(), baseQuery, pageSizePolicy, continuationExecutor);
+        }
+        if (parallelEnumeration) {
+            return new ParallelDevicePageSource(deviceServiceClient, user.getId(), baseQuery, pageSizePolicy, pageFetchExecutor, fetchParallelism);
+        }
+        final DevicePageSource source = new KeysetDevicePageSource(deviceServiceClient, user.getId(), baseQuery, pageSizePolicy);
+        if (prefetchDepth > 0) {
+            return new PrefetchingDevicePageSource(source, pageFetchExecutor, prefetchDepth);
+        }
+        return source;
+    }
+
+    private void publishToDevices(BroadcastJob job, TargetSet targets, List<String> unitIds, MessagePayload payload) {
+        publishToDevicesAsync(job, targets, unitIds, payload).join();
     }
 
-    void sendMessageToDevicesInFilter(User user, String name, String message, boolean retained) {
-        final Filter filter = deviceServiceClient.getFilterByUserIdAndName(user.getId(), name);
-        final BarracksQuery query = new BarracksQuery(buildFirstSeenBeforeNowQuery(filter.getQuery()));
-        sendMessageToNextDevicesPages(user, message, retained, query, 0);
+    // Completes once every publication is settled, failed ones being counted on the job rather than propagated
+    private CompletableFuture<Void> publishToDevicesAsync(BroadcastJob job, TargetSet targets, List<String> unitIds, MessagePayload payload) {
+        final CompletableFuture<?>[] publications = unitIds.stream()
+                .filter(unitId -> isNewTarget(job, targets, unitId))
+                .map(unitId -> mqttBrokerClient.sendMessageAsync(payload, unitId)
+                        .whenComplete((ignored, e) -> {
+                            if (e == null) {
+                                job.addPublished();
+                            } else {
+                                job.addFailed();
+                            }
+                        }))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(publications)
+                .exceptionally(e -> null);
     }
 
-     private void sendMessageToNextDevicesPages(User user, String message, boolean retained, BarracksQuery query, int firstPageIndex) {
-        final Pageable pageable = new PageRequest(firstPageIndex, 100, new Sort(Sort.Direction.ASC, "firstSeen"));
-        final PagedResources<Device> page = deviceServiceClient.getDevices(user.getId(), pageable, query);
-        page.getContent()
-                .stream()
-                .map(Device::getUnitId)
-                .collect(Collectors.toList())
-                .forEach(unitId -> mqttBrokerClient.sendMessage(user.getApiKey(), unitId, message, retained));
-        final long totalPages = page.getMetadata().getTotalPages();
-        if (firstPageIndex < totalPages-1) {
-            sendMessageToNextDevicesPages(user, message, retained, query, ++firstPageIndex);
+    private static boolean isNewTarget(BroadcastJob job, TargetSet targets, String unitId) {
+        if (targets == null || targets.add(unitId)) {
+            return true;
         }
+        job.addDuplicate();
+        return false;
+    }
+
+    private static JsonNode buildUnionQuery(List<JsonNode> queries) {
+        final JsonNodeFactory jsonNodeFactory = JsonNodeFactory.instance;
+        return jsonNodeFactory.objectNode()
+                .set("or", jsonNodeFactory.arrayNode().addAll(queries));
     }
 
     private JsonNode buildFirstSeenBeforeNowQuery() {
@@ -125,4 +400,4 @@ public class MessagingServiceManager {
         return jsonNodeFactory.objectNode()
                 .set("and", child);
     }
-}
\ No newline at end of file
+}
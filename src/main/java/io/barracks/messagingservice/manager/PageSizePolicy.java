@@ -0,0 +1,101 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses how many devices to ask the device service for at once. In adaptive mode the size doubles while full
+ * pages come back well within the target latency and halves when a request exceeds it, staying within the
+ * configured bounds. The size is shared by all broadcasts since they all hit the same device service.
+ */
+@Component
+public class PageSizePolicy implements PublicMetrics {
+
+    private final boolean adaptive;
+
+    private final int minSize;
+
+    private final int maxSize;
+
+    private final long targetLatency;
+
+    private final AtomicInteger currentSize;
+
+    private final AtomicLong lastLatency = new AtomicLong();
+
+    @Autowired
+    public PageSizePolicy(
+            @Value("${io.barracks.messaging.paging.size}") int initialSize,
+            @Value("${io.barracks.messaging.paging.adaptive}") boolean adaptive,
+            @Value("${io.barracks.messaging.paging.min_size}") int minSize,
+            @Value("${io.barracks.messaging.paging.max_size}") int maxSize,
+            @Value("${io.barracks.messaging.paging.target_latency}") long targetLatency
+    ) {
+        this.adaptive = adaptive;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.targetLatency = targetLatency;
+        this.currentSize = new AtomicInteger(adaptive ? clamp(initialSize) : initialSize);
+    }
+
+    public int getPageSize() {
+        return currentSize.get();
+    }
+
+    public void record(int requested, int returned, long latency) {
+        lastLatency.set(latency);
+        if (!adaptive) {
+            return;
+        }
+        if (latency > targetLatency) {
+            currentSize.updateAndGet(size -> clamp(size / 2));
+        } else if (returned >= requested && latency * 2 < targetLatency) {
+            currentSize.updateAndGet(size -> clamp(size * 2));
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("messaging.paging.size", currentSize.get()),
+                new Metric<>("messaging.paging.last_latency", lastLatency.get())
+        );
+    }
+
+    private int clamp(int size) {
+        return Math.max(minSize, Math.min(maxSize, size));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.barracks.messagingservice.client.DeviceServiceClient;
+import io.barracks.messagingservice.model.BarracksQuery;
+import io.barracks.messagingservice.model.DeviceIdPage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reads the first page of the devices matching a query, then fetches all the remaining pages by offset, at most
+ * {@code parallelism} at a time on the fetch executor, handing each page to the handler as soon as it arrives.
+ * Pages are not delivered in order. The base query must exclude devices created after the enumeration started so
+ * that offsets stay stable while the pages are being read. The page size is read from the policy once per
+ * enumeration, offsets depending on it, and the latency of every page is reported back to the policy.
+ */
+@Slf4j
+class ParallelDevicePageSource implements DevicePageSource {
+
+    private final DeviceServiceClient deviceServiceClient;
+
+    private final String userId;
+
+    private final BarracksQuery baseQuery;
+
+    private final PageSizePolicy pageSizePolicy;
+
+    private final int pageSize;
+
+    private final AsyncTaskExecutor fetchExecutor;
+
+    private final int parallelism;
+
+    ParallelDevicePageSource(
+            DeviceServiceClient deviceServiceClient,
+            String userId,
+            JsonNode baseQuery,
+            PageSizePolicy pageSizePolicy,
+            AsyncTaskExecutor fetchExecutor,
+            int parallelism
+    ) {
+        this.deviceServiceClient = deviceServiceClient;
+        this.userId = userId;
+        this.baseQuery = new BarracksQuery(baseQuery);
+        this.pageSizePolicy = pageSizePolicy;
+        this.pageSize = pageSizePolicy.getPageSize();
+        this.fetchExecutor = fetchExecutor;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public void forEachPage(DevicePageHandler handler) throws InterruptedException {
+        final List<String> firstUnitIds = new ArrayList<>(pageSize);
+        final DeviceIdPage first = fetch(0, firstUnitIds);
+        handler.accept(new DevicePage(firstUnitIds, first.getTotalElements()));
+        final int totalPages = (int) first.getTotalPages();
+
+        final BlockingQueue<FetchResult> completed = new LinkedBlockingQueue<>();
+        final List<Future<?>> fetches = new ArrayList<>();
+        int next = 1;
+        int pending = 0;
+        try {
+            while (next < totalPages || pending > 0) {
+                while (next < totalPages && pending < parallelism) {
+                    final int pageNumber = next++;
+                    try {
+                        fetches.add(fetchExecutor.submit(() -> completed.add(fetchQuietly(pageNumber))));
+                    } catch (TaskRejectedException e) {
+                        log.debug("Fetch executor saturated, reading page {} inline", pageNumber);
+                        completed.add(fetchQuietly(pageNumber));
+                    }
+                    pending++;
+                }
+                final FetchResult result = completed.take();
+                pending--;
+                if (result.failure != null) {
+                    throw result.failure;
+                }
+                handler.accept(new DevicePage(result.unitIds, 0));
+            }
+        } finally {
+            fetches.forEach(fetch -> fetch.cancel(true));
+        }
+    }
+
+    private DeviceIdPage fetch(int pageNumber, List<String> unitIds) {
+        final Pageable pageable = new PageRequest(pageNumber, pageSize, KeysetDevicePageSource.SORT);
+        final long start = System.currentTimeMillis();
+        final DeviceIdPage page = deviceServiceClient.getDeviceIds(userId, pageable, baseQuery, unitIds::add);
+        pageSizePolicy.record(pageSize, page.getCount(), System.currentTimeMillis() - start);
+        return page;
+    }
+
+    private FetchResult fetchQuietly(int pageNumber) {
+        final List<String> unitIds = new ArrayList<>(pageSize);
+        try {
+            fetch(pageNumber, unitIds);
+            return new FetchResult(unitIds, null);
+        } catch (RuntimeException e) {
+            return new FetchResult(null, e);
+        }
+    }
+
+    private static final class FetchResult {
+        private final List<String> unitIds;
+        private final RuntimeException failure;
+
+        private FetchResult(List<String> unitIds, RuntimeException failure) {
+            this.unitIds = unitIds;
+            this.failure = failure;
+        }
+    }
+}
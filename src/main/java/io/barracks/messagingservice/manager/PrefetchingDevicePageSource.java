@@ -0,0 +1,93 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reads up to {@code depth} pages ahead of the handler: the delegate source runs on the fetch executor and fills a
+ * bounded buffer that the calling thread drains, so device service requests overlap with publishing.
+ * Falls back to walking the delegate inline when the fetch executor is saturated.
+ */
+@Slf4j
+class PrefetchingDevicePageSource implements DevicePageSource {
+
+    private final DevicePageSource delegate;
+
+    private final AsyncTaskExecutor fetchExecutor;
+
+    private final int depth;
+
+    PrefetchingDevicePageSource(DevicePageSource delegate, AsyncTaskExecutor fetchExecutor, int depth) {
+        this.delegate = delegate;
+        this.fetchExecutor = fetchExecutor;
+        this.depth = depth;
+    }
+
+    @Override
+    public void forEachPage(DevicePageHandler handler) throws InterruptedException {
+        final BlockingQueue<DevicePage> buffer = new ArrayBlockingQueue<>(depth);
+        final Future<?> producer;
+        try {
+            producer = fetchExecutor.submit(() -> {
+                try {
+                    delegate.forEachPage(buffer::put);
+                } finally {
+                    buffer.put(DevicePage.END);
+                }
+                return null;
+            });
+        } catch (TaskRejectedException e) {
+            log.debug("Fetch executor saturated, walking device pages inline");
+            delegate.forEachPage(handler);
+            return;
+        }
+        try {
+            DevicePage page = buffer.take();
+            while (page != DevicePage.END) {
+                handler.accept(page);
+                page = buffer.take();
+            }
+            producer.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            producer.cancel(true);
+            // A cancelled producer still puts its END marker, make room for it in case we left with a full buffer
+            buffer.clear();
+        }
+    }
+}
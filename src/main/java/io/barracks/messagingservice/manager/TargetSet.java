@@ -0,0 +1,226 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The unit ids a broadcast already published to. Ids are kept in a hash set until it reaches the memory threshold,
+ * at which point the set is written to disk as a sorted run guarded by a Bloom filter and a sparse index, so that a
+ * lookup in a run rarely touches the file and never reads more than one block of it.
+ * Not thread safe: a broadcast walks its targets one page at a time.
+ */
+class TargetSet implements Closeable {
+
+    static final int INDEX_INTERVAL = 64;
+
+    private final int memoryThreshold;
+
+    private final Set<String> recent = new HashSet<>();
+
+    private final List<SpillRun> runs = new ArrayList<>();
+
+    TargetSet(int memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * @return true when the unit id was not part of the set yet
+     */
+    boolean add(String unitId) {
+        if (recent.contains(unitId)) {
+            return false;
+        }
+        for (SpillRun run : runs) {
+            if (run.contains(unitId)) {
+                return false;
+            }
+        }
+        recent.add(unitId);
+        if (recent.size() >= memoryThreshold) {
+            spill();
+        }
+        return true;
+    }
+
+    int getSpilledRuns() {
+        return runs.size();
+    }
+
+    @Override
+    public void close() {
+        runs.forEach(SpillRun::delete);
+        runs.clear();
+        recent.clear();
+    }
+
+    private void spill() {
+        final String[] sorted = recent.toArray(new String[recent.size()]);
+        Arrays.sort(sorted);
+        try {
+            runs.add(SpillRun.write(sorted));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not spill broadcast targets to disk", e);
+        }
+        recent.clear();
+    }
+
+    private static final class SpillRun {
+        private final Path file;
+        private final BloomFilter bloomFilter;
+        private final String[] indexKeys;
+        private final long[] indexOffsets;
+        private final int size;
+
+        private SpillRun(Path file, BloomFilter bloomFilter, String[] indexKeys, long[] indexOffsets, int size) {
+            this.file = file;
+            this.bloomFilter = bloomFilter;
+            this.indexKeys = indexKeys;
+            this.indexOffsets = indexOffsets;
+            this.size = size;
+        }
+
+        static SpillRun write(String[] sorted) throws IOException {
+            final Path file = Files.createTempFile("broadcast-targets-", ".run");
+            final BloomFilter bloomFilter = new BloomFilter(sorted.length);
+            final int indexSize = (sorted.length + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            final String[] indexKeys = new String[indexSize];
+            final long[] indexOffsets = new long[indexSize];
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                for (int i = 0; i < sorted.length; i++) {
+                    if (i % INDEX_INTERVAL == 0) {
+                        indexKeys[i / INDEX_INTERVAL] = sorted[i];
+                        indexOffsets[i / INDEX_INTERVAL] = out.size();
+                    }
+                    out.writeUTF(sorted[i]);
+                    bloomFilter.put(sorted[i]);
+                }
+            }
+            return new SpillRun(file, bloomFilter, indexKeys, indexOffsets, sorted.length);
+        }
+
+        boolean contains(String unitId) {
+            if (!bloomFilter.mightContain(unitId)) {
+                return false;
+            }
+            int block = Arrays.binarySearch(indexKeys, unitId);
+            if (block >= 0) {
+                return true;
+            }
+            block = -block - 2;
+            if (block < 0) {
+                return false;
+            }
+            final int entries = Math.min(INDEX_INTERVAL, size - block * INDEX_INTERVAL);
+            try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+                in.seek(indexOffsets[block]);
+                for (int i = 0; i < entries; i++) {
+                    final int comparison = in.readUTF().compareTo(unitId);
+                    if (comparison == 0) {
+                        return true;
+                    }
+                    if (comparison > 0) {
+                        return false;
+                    }
+                }
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read spilled broadcast targets", e);
+            }
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not delete spilled broadcast targets", e);
+            }
+        }
+    }
+
+    // Sized for a 1% false positive rate, using double hashing to derive the probes
+    private static final class BloomFilter {
+        private static final int HASHES = 7;
+        private final long[] bits;
+        private final long bitCount;
+
+        BloomFilter(int expectedInsertions) {
+            this.bitCount = Math.max(64, (long) Math.ceil(expectedInsertions * 9.6));
+            this.bits = new long[(int) ((bitCount + 63) / 64)];
+        }
+
+        void put(String value) {
+            final long hash = hash(value);
+            final int first = (int) hash;
+            final int second = (int) (hash >>> 32);
+            for (int i = 1; i <= HASHES; i++) {
+                final long bit = Math.floorMod(first + i * second, bitCount);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(String value) {
+            final long hash = hash(value);
+            final int first = (int) hash;
+            final int second = (int) (hash >>> 32);
+            for (int i = 1; i <= HASHES; i++) {
+                final long bit = Math.floorMod(first + i * second, bitCount);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // 64 bit FNV-1a over the UTF-8 bytes, finalized with the MurmurHash3 mixer
+        private static long hash(String value) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b;
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb93fe4a64d53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Users whose device firmware also subscribes to a tenant-wide topic, {@code apiKey/<name>}. A message for all
+ * of their devices is published once on that topic instead of on the topic of every device.
+ */
+@Component
+public class TenantBroadcastTopics {
+
+    private final String name;
+
+    private final Set<String> userIds;
+
+    @Autowired
+    public TenantBroadcastTopics(
+            @Value("${io.barracks.messaging.broadcast_topic.name}") String name,
+            @Value("${io.barracks.messaging.broadcast_topic.users}") String[] userIds
+    ) {
+        this.name = name;
+        this.userIds = Collections.unmodifiableSet(Arrays.stream(userIds)
+                .map(String::trim)
+                .filter(userId -> !userId.isEmpty())
+                .collect(Collectors.toSet()));
+    }
+
+    public boolean isEnabled(String userId) {
+        return userIds.contains(userId);
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the devices of a user in (firstSeen, unitId) order. Unit ids are stored back to back as
+ * UTF-8 bytes with an offset table and first seen dates as epoch milliseconds, which costs a few dozen bytes per
+ * device instead of a String and an OffsetDateTime.
+ */
+final class TenantDirectory {
+
+    private final byte[] unitIds;
+
+    private final int[] offsets;
+
+    private final long[] firstSeen;
+
+    private final int size;
+
+    // Sort key of the last device, new devices are requested after it
+    @Getter
+    private final String highWaterUnitId;
+
+    @Getter
+    private final String highWaterFirstSeen;
+
+    @Getter
+    private final long builtAt;
+
+    private TenantDirectory(byte[] unitIds, int[] offsets, long[] firstSeen, int size, String highWaterUnitId, String highWaterFirstSeen, long builtAt) {
+        this.unitIds = unitIds;
+        this.offsets = offsets;
+        this.firstSeen = firstSeen;
+        this.size = size;
+        this.highWaterUnitId = highWaterUnitId;
+        this.highWaterFirstSeen = highWaterFirstSeen;
+        this.builtAt = builtAt;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String getUnitId(int index) {
+        return new String(unitIds, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+    }
+
+    long getFirstSeen(int index) {
+        return firstSeen[index];
+    }
+
+    List<String> getUnitIds(int from, int to) {
+        final List<String> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            result.add(getUnitId(i));
+        }
+        return result;
+    }
+
+    List<String> getUnitIds(int from, int to, DevicePredicate predicate) {
+        final List<String> result = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            if (predicate.test(this, i)) {
+                result.add(getUnitId(i));
+            }
+        }
+        return result;
+    }
+
+    // Compares the UTF-8 bytes without decoding them, which is also how the device service orders unit ids
+    int compareUnitId(int index, byte[] other) {
+        final int start = offsets[index];
+        final int length = offsets[index + 1] - start;
+        final int common = Math.min(length, other.length);
+        for (int i = 0; i < common; i++) {
+            final int difference = (unitIds[start + i] & 0xff) - (other[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - other.length;
+    }
+
+    int weight() {
+        return offsets[size] + size * (Integer.BYTES + Long.BYTES);
+    }
+
+    static Builder builder(long builtAt) {
+        return new Builder(null, builtAt);
+    }
+
+    // Starts from the devices of this snapshot, keeping its build date
+    Builder toBuilder() {
+        return new Builder(this, builtAt);
+    }
+
+    static final class Builder {
+        private final TenantDirectory base;
+        private final long builtAt;
+        private byte[] unitIds;
+        private int[] offsets;
+        private long[] firstSeen;
+        private int size;
+        private String highWaterUnitId;
+        private String highWaterFirstSeen;
+
+        private Builder(TenantDirectory base, long builtAt) {
+            this.base = base;
+            this.builtAt = builtAt;
+            if (base == null) {
+                this.unitIds = new byte[1024];
+                this.offsets = new int[65];
+                this.firstSeen = new long[64];
+            } else {
+                this.unitIds = base.unitIds;
+                this.offsets = base.offsets;
+                this.firstSeen = base.firstSeen;
+                this.size = base.size;
+                this.highWaterUnitId = base.highWaterUnitId;
+                this.highWaterFirstSeen = base.highWaterFirstSeen;
+            }
+        }
+
+        void add(String unitId, long deviceFirstSeen) {
+            final byte[] bytes = unitId.getBytes(StandardCharsets.UTF_8);
+            // Copy on first write so that the base snapshot is never modified
+            if (base != null && unitIds == base.unitIds) {
+                unitIds = Arrays.copyOf(unitIds, unitIds.length + bytes.length + 1024);
+                firstSeen = Arrays.copyOf(firstSeen, firstSeen.length + 64);
+                offsets = Arrays.copyOf(offsets, firstSeen.length + 1);
+            }
+            final int start = offsets[size];
+            if (start + bytes.length > unitIds.length) {
+                unitIds = Arrays.copyOf(unitIds, Math.max(unitIds.length * 2, start + bytes.length));
+            }
+            if (size == firstSeen.length) {
+                firstSeen = Arrays.copyOf(firstSeen, firstSeen.length * 2);
+                offsets = Arrays.copyOf(offsets, firstSeen.length + 1);
+            }
+            System.arraycopy(bytes, 0, unitIds, start, bytes.length);
+            firstSeen[size] = deviceFirstSeen;
+            offsets[++size] = start + bytes.length;
+        }
+
+        void setHighWater(String unitId, String firstSeen) {
+            highWaterUnitId = unitId;
+            highWaterFirstSeen = firstSeen;
+        }
+
+        String getHighWaterUnitId() {
+            return highWaterUnitId;
+        }
+
+        String getHighWaterFirstSeen() {
+            return highWaterFirstSeen;
+        }
+
+        boolean isModified() {
+            return base == null || size != base.size;
+        }
+
+        TenantDirectory build() {
+            if (base != null && !isModified()) {
+                return base;
+            }
+            final int bytes = offsets[size];
+            return new TenantDirectory(
+                    Arrays.copyOf(unitIds, bytes),
+                    Arrays.copyOf(offsets, size + 1),
+                    Arrays.copyOf(firstSeen, size),
+                    size,
+                    highWaterUnitId,
+                    highWaterFirstSeen,
+                    builtAt
+            );
+        }
+    }
+}
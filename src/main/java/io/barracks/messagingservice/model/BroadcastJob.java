@@ -0,0 +1,146 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BroadcastJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    @Getter
+    private final String id;
+
+    @Getter
+    @JsonIgnore
+    private final String userId;
+
+    @Getter
+    private final OffsetDateTime created;
+
+    @Getter
+    private volatile OffsetDateTime finished;
+
+    @Getter
+    private volatile Status status = Status.QUEUED;
+
+    private final AtomicLong targetedCount = new AtomicLong();
+
+    private final AtomicLong publishedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final AtomicLong duplicateCount = new AtomicLong();
+
+    private volatile long startNanos;
+
+    private volatile long endNanos;
+
+    public BroadcastJob(String userId) {
+        this.id = UUID.randomUUID().toString();
+        this.userId = userId;
+        this.created = OffsetDateTime.now();
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+        status = Status.RUNNING;
+    }
+
+    public void complete(boolean success) {
+        endNanos = System.nanoTime();
+        finished = OffsetDateTime.now();
+        status = success ? Status.COMPLETED : Status.FAILED;
+    }
+
+    public void addTargeted(long count) {
+        targetedCount.addAndGet(count);
+    }
+
+    public void addPublished() {
+        publishedCount.incrementAndGet();
+    }
+
+    public void addFailed() {
+        failedCount.incrementAndGet();
+    }
+
+    public void addDuplicate() {
+        duplicateCount.incrementAndGet();
+    }
+
+    @JsonIgnore
+    public boolean isFinished() {
+        return finished != null;
+    }
+
+    public long getTargeted() {
+        return targetedCount.get();
+    }
+
+    public long getPublished() {
+        return publishedCount.get();
+    }
+
+    public long getFailed() {
+        return failedCount.get();
+    }
+
+    public long getDuplicates() {
+        return duplicateCount.get();
+    }
+
+    public long getRemaining() {
+        return Math.max(0, getTargeted() - getPublished() - getFailed() - getDuplicates());
+    }
+
+    public double getThroughput() {
+        if (status == Status.QUEUED) {
+            return 0;
+        }
+        final long end = isFinished() ? endNanos : System.nanoTime();
+        final double seconds = (end - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        return seconds > 0 ? (getPublished() + getFailed()) / seconds : 0;
+    }
+
+    public Long getEta() {
+        if (status != Status.RUNNING) {
+            return null;
+        }
+        final double throughput = getThroughput();
+        return throughput > 0 ? (long) Math.ceil(getRemaining() / throughput) : null;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.model;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A broadcast message encoded once and shared by the publications to every device of the job. The body array is
+ * handed as is to the broker clients and must never be modified.
+ */
+@Getter
+@ToString(exclude = "body")
+@EqualsAndHashCode
+public final class MessagePayload {
+
+    private final String topicPrefix;
+
+    private final byte[] body;
+
+    private final boolean retained;
+
+    private final int qos;
+
+    private MessagePayload(String topicPrefix, byte[] body, boolean retained, int qos) {
+        this.topicPrefix = topicPrefix;
+        this.body = body;
+        this.retained = retained;
+        this.qos = qos;
+    }
+
+    public static MessagePayload of(String apiKey, String message, boolean retained, int qos) {
+        return new MessagePayload(apiKey + "/", message.getBytes(StandardCharsets.UTF_8), retained, qos);
+    }
+
+    public String getTopic(String unitId) {
+        return topicPrefix.concat(unitId);
+    }
+}
@@ -25,9 +25,16 @@
 package io.barracks.messagingservice.rest;
 
 import io.barracks.messagingservice.manager.MessagingServiceManager;
+import io.barracks.messagingservice.manager.exception.BroadcastJobNotFoundException;
+import io.barracks.messagingservice.manager.exception.InvalidQosException;
+import io.barracks.messagingservice.manager.exception.RetainedMessageNotSupportedException;
+import io.barracks.messagingservice.model.BroadcastJob;
 import io.barracks.messagingservice.model.User;
 import io.barracks.messagingservice.security.UserAuthentication;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
 
 import java.security.Principal;
@@ -36,6 +43,7 @@ import java.util.List;
 
 @RestController
 @RequestMapping("/messages")
+@Slf4j
 public class MessageResource {
 
     private final MessagingServiceManager messagingServiceManager;
@@ -46,15 +54,47 @@ public class MessageResource {
     }
 
     @RequestMapping(method = RequestMethod.POST)
-    public void sendMessage(@RequestBody String message,
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    public BroadcastJob sendMessage(@RequestBody String message,
                             @RequestParam(value="unitId", defaultValue = "") String[] unitIdArray,
                             @RequestParam(value="filter", defaultValue = "") String[] filtersArray,
                             @RequestParam(value = "retained", defaultValue = "false") boolean retained,
+                            @RequestParam(value = "qos", defaultValue = "1") int qos,
                             Principal principal) {
         final User user = ((UserAuthentication) principal).getDetails();
         final List<String> unitIdList = Arrays.asList(unitIdArray);
         final List<String> filtersList = Arrays.asList(filtersArray);
-        messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained);
+        return messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained, qos);
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/{jobId}")
+    public BroadcastJob getJob(@PathVariable("jobId") String jobId, Principal principal) {
+        final User user = ((UserAuthentication) principal).getDetails();
+        return messagingServiceManager.getJob(user, jobId);
+    }
+
+    @ExceptionHandler(TaskRejectedException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public void handleBroadcastRejected(TaskRejectedException e) {
+        log.warn("Broadcast rejected, the executor is saturated", e);
+    }
+
+    @ExceptionHandler(InvalidQosException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public void handleInvalidQos(InvalidQosException e) {
+        log.debug(e.getMessage());
+    }
+
+    @ExceptionHandler(RetainedMessageNotSupportedException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public void handleRetainedNotSupported(RetainedMessageNotSupportedException e) {
+        log.debug(e.getMessage());
+    }
+
+    @ExceptionHandler(BroadcastJobNotFoundException.class)
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    public void handleJobNotFound(BroadcastJobNotFoundException e) {
+        log.debug(e.getMessage());
     }
 
 }
@@ -24,7 +24,7 @@
 
 package io.barracks.messagingservice.security;
 
-import io.barracks.messagingservice.client.AuthorizationServiceClient;
+import io.barracks.messagingservice.client.exception.AuthorizationServiceClientException;
 import io.barracks.messagingservice.model.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,21 +45,27 @@ public class TokenAuthenticationFilter extends OncePerRequestFilter {
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private final AuthorizationServiceClient authorizationServiceClient;
+    private final UserTokenCache userTokenCache;
 
     @Autowired
-    public TokenAuthenticationFilter(AuthorizationServiceClient authorizationServiceClient) {
-        this.authorizationServiceClient = authorizationServiceClient;
+    public TokenAuthenticationFilter(UserTokenCache userTokenCache) {
+        this.userTokenCache = userTokenCache;
     }
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
         final String token = request.getHeader("X-Auth-Token");
         try {
-            final User user = authorizationServiceClient.requestUserFromToken(token);
+            final User user = userTokenCache.getUser(token);
             SecurityContextHolder.getContext().setAuthentication(new UserAuthentication(user));
         } catch (HttpClientErrorException e) {
             logger.warn("Authentication of token '{}' from '{}' thrown '{}'", token, request.getRemoteAddr(), e);
+        } catch (AuthorizationServiceClientException e) {
+            // Only a 4xx means the token is bad, an unavailable authorization service must not look like a 401
+            if (!UserTokenCache.isRejection(e)) {
+                throw e;
+            }
+            logger.warn("Authentication of token '{}' from '{}' thrown '{}'", token, request.getRemoteAddr(), e);
         }
         filterChain.doFilter(request, response);
         SecurityContextHolder.getContext().setAuthentication(null);
@@ -0,0 +1,167 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.barracks.messagingservice.client.AuthorizationServiceClient;
+import io.barracks.messagingservice.client.exception.AuthorizationServiceClientException;
+import io.barracks.messagingservice.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which user a token resolved to, and for a shorter time which tokens the authorization service rejected.
+ * Entries are keyed by a SHA-256 digest of the token so that raw tokens are never kept in memory.
+ * Concurrent misses on the same token share a single lookup, whose failure is reported to every waiting request.
+ */
+@Component
+public class UserTokenCache implements PublicMetrics {
+
+    private final AuthorizationServiceClient authorizationServiceClient;
+
+    private final Cache<String, User> users;
+
+    private final Cache<String, AuthorizationServiceClientException> rejections;
+
+    private final ConcurrentMap<String, CompletableFuture<User>> pendingLookups = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedLookups = new AtomicLong();
+
+    @Autowired
+    public UserTokenCache(
+            AuthorizationServiceClient authorizationServiceClient,
+            @Value("${io.barracks.authorizationservice.cache.ttl}") long ttl,
+            @Value("${io.barracks.authorizationservice.cache.negative_ttl}") long negativeTtl,
+            @Value("${io.barracks.authorizationservice.cache.max_size}") long maxSize
+    ) {
+        this.authorizationServiceClient = authorizationServiceClient;
+        this.users = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        this.rejections = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(negativeTtl, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public User getUser(String token) {
+        if (token == null) {
+            return authorizationServiceClient.requestUserFromToken(null);
+        }
+        final String key = hash(token);
+        final AuthorizationServiceClientException rejection = rejections.getIfPresent(key);
+        if (rejection != null) {
+            throw rejection;
+        }
+        final User cached = users.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        final CompletableFuture<User> lookup = new CompletableFuture<>();
+        final CompletableFuture<User> pending = pendingLookups.putIfAbsent(key, lookup);
+        if (pending != null) {
+            coalescedLookups.incrementAndGet();
+            return await(pending);
+        }
+        try {
+            final User user = authorizationServiceClient.requestUserFromToken(token);
+            users.put(key, user);
+            lookup.complete(user);
+            return user;
+        } catch (RuntimeException e) {
+            if (e instanceof AuthorizationServiceClientException && isRejection((AuthorizationServiceClientException) e)) {
+                rejections.put(key, (AuthorizationServiceClientException) e);
+            }
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingLookups.remove(key, lookup);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats userStats = users.stats();
+        final CacheStats rejectionStats = rejections.stats();
+        return Arrays.asList(
+                new Metric<>("auth.cache.size", users.estimatedSize()),
+                new Metric<>("auth.cache.hits", userStats.hitCount()),
+                new Metric<>("auth.cache.misses", userStats.missCount()),
+                new Metric<>("auth.cache.evictions", userStats.evictionCount()),
+                new Metric<>("auth.cache.rejections.size", rejections.estimatedSize()),
+                new Metric<>("auth.cache.rejections.hits", rejectionStats.hitCount()),
+                new Metric<>("auth.cache.coalesced", coalescedLookups.get())
+        );
+    }
+
+    private static User await(CompletableFuture<User> lookup) {
+        try {
+            return lookup.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Only 4xx answers mean the token itself is bad, server errors must be retried on the next request
+    static boolean isRejection(AuthorizationServiceClientException e) {
+        return e.getCause() instanceof HttpStatusCodeException
+                && ((HttpStatusCodeException) e.getCause()).getStatusCode().is4xxClientError();
+    }
+
+    private static String hash(String token) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
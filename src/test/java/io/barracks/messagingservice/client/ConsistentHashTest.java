@@ -0,0 +1,65 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.client;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsistentHashTest {
+
+    @Test
+    public void bucket_whenKeysAreSpread_shouldUseEveryBucket() {
+        // Given
+        final int buckets = 8;
+        final int[] counts = new int[buckets];
+
+        // When
+        for (int i = 0; i < 8000; i++) {
+            counts[ConsistentHash.bucket(UUID.randomUUID() + "/" + UUID.randomUUID(), buckets)]++;
+        }
+
+        // Then
+        for (int count : counts) {
+            assertThat(count).isBetween(700, 1300);
+        }
+    }
+
+    @Test
+    public void bucket_whenBucketIsAdded_shouldOnlyMoveKeysToIt() {
+        // Given
+        final String key = "apiKey/" + UUID.randomUUID();
+
+        // When
+        final int before = ConsistentHash.bucket(key, 4);
+        final int after = ConsistentHash.bucket(key, 5);
+
+        // Then
+        assertThat(after).isIn(before, 4);
+        assertThat(ConsistentHash.bucket(key, 4)).isEqualTo(before);
+    }
+}
@@ -31,6 +31,7 @@ import io.barracks.commons.util.Endpoint;
 import io.barracks.messagingservice.client.exception.DeviceServiceClientException;
 import io.barracks.messagingservice.model.BarracksQuery;
 import io.barracks.messagingservice.model.Device;
+import io.barracks.messagingservice.model.DeviceIdPage;
 import io.barracks.messagingservice.model.Filter;
 import io.barracks.messagingservice.utils.BarracksQueryUtils;
 import org.junit.Test;
@@ -38,21 +39,30 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.client.RestClientTest;
+import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.core.io.Resource;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.hateoas.PagedResources;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.client.ExpectedCount;
 import org.springframework.test.web.client.MockRestServiceServer;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withBadRequest;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
 
 @RunWith(SpringRunner.class)
@@ -70,35 +80,56 @@ public class DeviceServiceClientTest {
 
     @Value("classpath:io/barracks/messagingservice/client/devices.json")
     private Resource devices;
+    @Value("classpath:io/barracks/messagingservice/client/devicesPage.json")
+    private Resource devicesPage;
     @Value("classpath:io/barracks/messagingservice/client/getFilter.json")
     private Resource getFilter;
 
 
     @Test
-    public void getDevicesWithQuery_whenRequestSucceed_shouldReturnDevices() throws Exception {
+    public void getDeviceIds_whenRequestSucceed_shouldStreamUnitIdsAndReturnPageMetadata() throws Exception {
+        // Given
+        final Endpoint endpoint = DeviceServiceClient.GET_DEVICES_ENDPOINT;
+        final String userId = UUID.randomUUID().toString();
+        final Pageable pageable = new PageRequest(0, 2);
+        final BarracksQuery query = BarracksQueryUtils.getQuery();
+        final List<String> unitIds = new ArrayList<>();
+        mockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).pageable(pageable).getURI(userId, query.toJsonString())))
+                .andRespond(withSuccess().body(devicesPage));
+
+        // When
+        final DeviceIdPage result = deviceServiceClient.getDeviceIds(userId, pageable, query, unitIds::add);
+
+        // Then
+        mockServer.verify();
+        assertThat(unitIds).containsExactly("837013ae-ef90-48ce-8813-82a361204a66", "otherUnit");
+        assertThat(result).isEqualTo(new DeviceIdPage(2, 5, 3, "otherUnit", "2017-03-02T08:00:00.000Z"));
+    }
+
+    @Test
+    public void getDeviceIds_whenNoPageMetadata_shouldReturnSinglePage() throws Exception {
         // Given
         final Endpoint endpoint = DeviceServiceClient.GET_DEVICES_ENDPOINT;
         final String userId = UUID.randomUUID().toString();
         final Pageable pageable = new PageRequest(0, 10);
         final BarracksQuery query = BarracksQueryUtils.getQuery();
-        final JsonNode jsonObject = mapper.readTree(devices.getInputStream());
-        final ArrayNode parsedDevices = ((ArrayNode) jsonObject.get("_embedded").get("devices"));
+        final List<String> unitIds = new ArrayList<>();
         mockServer.expect(method(endpoint.getMethod()))
                 .andExpect(requestTo(endpoint.withBase(baseUrl).pageable(pageable).getURI(userId, query.toJsonString())))
                 .andRespond(withSuccess().body(devices));
 
         // When
-        final PagedResources<Device> result = deviceServiceClient.getDevices(userId, pageable, query);
+        final DeviceIdPage result = deviceServiceClient.getDeviceIds(userId, pageable, query, unitIds::add);
 
         // Then
         mockServer.verify();
-        assertThat(result.getContent())
-                .isNotNull()
-                .hasSize(parsedDevices.size());
+        assertThat(unitIds).containsExactly("837013ae-ef90-48ce-8813-82a361204a66", "otherUnit");
+        assertThat(result).isEqualTo(new DeviceIdPage(2, 2, 1, "otherUnit", null));
     }
 
     @Test
-    public void getDevicesWithQuery_whenRequestFailed_shouldThrowException() throws Exception {
+    public void getDeviceIds_whenRequestFailed_shouldThrowException() throws Exception {
         // Given
         final Endpoint endpoint = DeviceServiceClient.GET_DEVICES_ENDPOINT;
         final String userId = UUID.randomUUID().toString();
@@ -110,10 +141,54 @@ public class DeviceServiceClientTest {
 
         // When / Then
         assertThatExceptionOfType(DeviceServiceClientException.class)
-                .isThrownBy(() -> deviceServiceClient.getDevices(userId, pageable, query));
+                .isThrownBy(() -> deviceServiceClient.getDeviceIds(userId, pageable, query, unitId -> {
+                }));
         mockServer.verify();
     }
 
+    @Test
+    public void getDevicesAsync_whenRequestSucceed_shouldCompleteWithDevices() throws Exception {
+        // Given
+        final Endpoint endpoint = DeviceServiceClient.GET_DEVICES_ENDPOINT;
+        final MockRestServiceServer asyncServer = MockRestServiceServer.bindTo(deviceServiceClient.asyncRestTemplate).build();
+        final String userId = UUID.randomUUID().toString();
+        final Pageable pageable = new PageRequest(0, 10);
+        final BarracksQuery query = BarracksQueryUtils.getQuery();
+        final JsonNode jsonObject = mapper.readTree(devices.getInputStream());
+        final ArrayNode parsedDevices = ((ArrayNode) jsonObject.get("_embedded").get("devices"));
+        asyncServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).pageable(pageable).getURI(userId, query.toJsonString())))
+                .andRespond(withSuccess().body(devices));
+
+        // When
+        final PagedResources<Device> result = deviceServiceClient.getDevicesAsync(userId, pageable, query).get();
+
+        // Then
+        asyncServer.verify();
+        assertThat(result.getContent())
+                .isNotNull()
+                .hasSize(parsedDevices.size());
+    }
+
+    @Test
+    public void getDevicesAsync_whenRequestFailed_shouldCompleteExceptionally() throws Exception {
+        // Given
+        final Endpoint endpoint = DeviceServiceClient.GET_DEVICES_ENDPOINT;
+        final MockRestServiceServer asyncServer = MockRestServiceServer.bindTo(deviceServiceClient.asyncRestTemplate).build();
+        final String userId = UUID.randomUUID().toString();
+        final Pageable pageable = new PageRequest(0, 10);
+        final BarracksQuery query = BarracksQueryUtils.getQuery();
+        asyncServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).pageable(pageable).getURI(userId, query.toJsonString())))
+                .andRespond(withServerError());
+
+        // When / Then
+        assertThatExceptionOfType(ExecutionException.class)
+                .isThrownBy(() -> deviceServiceClient.getDevicesAsync(userId, pageable, query).get())
+                .withCauseInstanceOf(DeviceServiceClientException.class);
+        asyncServer.verify();
+    }
+
     @Test
     public void getFilter_whenSucceeded_shouldReturnFilter() throws Exception {
         // Given
@@ -150,4 +225,90 @@ public class DeviceServiceClientTest {
         mockServer.verify();
     }
 
+    @Test
+    public void getFilter_whenCalledTwice_shouldRequestFilterOnce() throws Exception {
+        // Given
+        final Endpoint endpoint = DeviceServiceClient.GET_FILTER_ENDPOINT;
+        final String userId = UUID.randomUUID().toString();
+        final String filterName = UUID.randomUUID().toString();
+        final Filter expected = mapper.readValue(this.getFilter.getInputStream(), Filter.class);
+        mockServer.expect(ExpectedCount.once(), method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, filterName)))
+                .andRespond(withSuccess().body(getFilter));
+
+        // When
+        final Filter first = deviceServiceClient.getFilterByUserIdAndName(userId, filterName);
+        final Filter second = deviceServiceClient.getFilterByUserIdAndName(userId, filterName);
+
+        // Then
+        mockServer.verify();
+        assertThat(first).isEqualTo(expected);
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    public void fetchFilter_whenNotModified_shouldKeepCachedFilter() throws Exception {
+        // Given
+        final Endpoint endpoint = DeviceServiceClient.GET_FILTER_ENDPOINT;
+        final DeviceServiceClient.FilterKey key = new DeviceServiceClient.FilterKey(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        final Filter filter = mapper.readValue(this.getFilter.getInputStream(), Filter.class);
+        final DeviceServiceClient.CachedFilter cached = new DeviceServiceClient.CachedFilter(filter, "\"v1\"");
+        mockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(key.getUserId(), key.getName())))
+                .andExpect(header(HttpHeaders.IF_NONE_MATCH, "\"v1\""))
+                .andRespond(withStatus(HttpStatus.NOT_MODIFIED));
+
+        // When
+        final DeviceServiceClient.CachedFilter result = deviceServiceClient.fetchFilter(key, cached);
+
+        // Then
+        mockServer.verify();
+        assertThat(result).isSameAs(cached);
+    }
+
+    @Test
+    public void fetchFilter_whenModified_shouldReturnNewFilterAndEtag() throws Exception {
+        // Given
+        final Endpoint endpoint = DeviceServiceClient.GET_FILTER_ENDPOINT;
+        final DeviceServiceClient.FilterKey key = new DeviceServiceClient.FilterKey(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        final Filter expected = mapper.readValue(this.getFilter.getInputStream(), Filter.class);
+        final DeviceServiceClient.CachedFilter cached = new DeviceServiceClient.CachedFilter(expected, "\"v1\"");
+        final HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.setETag("\"v2\"");
+        mockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(key.getUserId(), key.getName())))
+                .andRespond(withSuccess().body(getFilter).headers(responseHeaders));
+
+        // When
+        final DeviceServiceClient.CachedFilter result = deviceServiceClient.fetchFilter(key, cached);
+
+        // Then
+        mockServer.verify();
+        assertThat(result.getFilter()).isEqualTo(expected);
+        assertThat(result.getEtag()).isEqualTo("\"v2\"");
+    }
+
+    @Test
+    public void getFilterByUserIdAndName_whenRefreshIsDisabled_shouldStillCacheFilters() throws Exception {
+        // Given
+        final DeviceServiceClient client = new DeviceServiceClient(mapper, new RestTemplateBuilder(), baseUrl, 600000L, 0L, 10L, 1, 2000, 10000);
+        final MockRestServiceServer server = MockRestServiceServer.bindTo(client.restTemplate).build();
+        final String userId = UUID.randomUUID().toString();
+        final String name = UUID.randomUUID().toString();
+        server.expect(ExpectedCount.once(), method(DeviceServiceClient.GET_FILTER_ENDPOINT.getMethod()))
+                .andExpect(requestTo(DeviceServiceClient.GET_FILTER_ENDPOINT.withBase(baseUrl).getURI(userId, name)))
+                .andRespond(withSuccess().body(getFilter));
+
+        try {
+            // When
+            final Filter first = client.getFilterByUserIdAndName(userId, name);
+            final Filter second = client.getFilterByUserIdAndName(userId, name);
+
+            // Then
+            server.verify();
+            assertThat(second).isSameAs(first);
+        } finally {
+            client.close();
+        }
+    }
 }
@@ -0,0 +1,287 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.client;
+
+import io.barracks.messagingservice.model.MessagePayload;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.refEq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PahoMQTTBrokerClientTest {
+
+    private static final String URI = "tcp://localhost";
+
+    @Mock
+    private MqttPahoClientFactory mqttPahoClientFactory;
+
+    private PahoMQTTBrokerClient mqttBrokerClient;
+
+    private IMqttAsyncClient mqttClient;
+
+    @Before
+    public void setUp() throws MqttException {
+        mqttBrokerClient = new PahoMQTTBrokerClient(URI, 1, 0, true, 1000L, true, 2, mqttPahoClientFactory);
+        mqttClient = mock(MqttAsyncClient.class);
+        doReturn(mqttClient).when(mqttPahoClientFactory).getAsyncClientInstance(eq(URI), anyString());
+        doReturn(mock(IMqttToken.class)).when(mqttClient).connect(any(MqttConnectOptions.class));
+        doReturn(mock(IMqttToken.class)).when(mqttClient).disconnect();
+    }
+
+    @After
+    public void tearDown() {
+        mqttBrokerClient.close();
+    }
+
+    @Test
+    public void sendMessageAsync_whenAllIsFine_shouldPublishOnTopicWithoutSubscribingOrDisconnecting() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final String message = UUID.randomUUID().toString();
+        final String topic = apiKey + "/" + unitId;
+        final boolean retained = false;
+        final MqttMessage mqttMessage = new MqttMessage(message.getBytes(StandardCharsets.UTF_8));
+        mqttMessage.setQos(1);
+        mqttMessage.setRetained(retained);
+        acknowledgePublications();
+
+        //When
+        final CompletableFuture<Void> result = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, retained, 1), unitId);
+        result.get(1, TimeUnit.SECONDS);
+
+        //Then
+        verify(mqttPahoClientFactory).getAsyncClientInstance(eq(URI), anyString());
+        verify(mqttClient).connect(any(MqttConnectOptions.class));
+        verify(mqttClient).publish(eq(topic), refEq(mqttMessage), isNull(), any(IMqttActionListener.class));
+        verify(mqttClient, never()).subscribe(anyString(), anyInt());
+        verify(mqttClient, never()).disconnect();
+        assertThat(result).isCompleted();
+    }
+
+    @Test
+    public void sendMessageAsync_whenCalledSeveralTimes_shouldReuseTheConnectedClient() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final String message = UUID.randomUUID().toString();
+        doReturn(false).doReturn(true).when(mqttClient).isConnected();
+        acknowledgePublications();
+
+        //When
+        mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), UUID.randomUUID().toString());
+        mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), UUID.randomUUID().toString()).get(1, TimeUnit.SECONDS);
+
+        //Then
+        verify(mqttPahoClientFactory, times(1)).getAsyncClientInstance(eq(URI), anyString());
+        verify(mqttClient, times(1)).connect(any(MqttConnectOptions.class));
+        verify(mqttClient, times(2)).publish(anyString(), any(MqttMessage.class), isNull(), any(IMqttActionListener.class));
+    }
+
+    @Test
+    public void sendMessageAsync_whenConnectionWasLost_shouldReconnectBeforePublishing() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final String message = UUID.randomUUID().toString();
+        doReturn(false).when(mqttClient).isConnected();
+        acknowledgePublications();
+
+        //When
+        mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), UUID.randomUUID().toString());
+        mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), UUID.randomUUID().toString()).get(1, TimeUnit.SECONDS);
+
+        //Then
+        verify(mqttPahoClientFactory, times(1)).getAsyncClientInstance(eq(URI), anyString());
+        verify(mqttClient, times(2)).connect(any(MqttConnectOptions.class));
+    }
+
+    @Test
+    public void sendMessageAsync_whenBrokerHasNotAcknowledgedYet_shouldKeepThePublicationPending() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final String message = UUID.randomUUID().toString();
+        final ArgumentCaptor<IMqttActionListener> listener = ArgumentCaptor.forClass(IMqttActionListener.class);
+
+        //When
+        final CompletableFuture<Void> first = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), UUID.randomUUID().toString());
+        final CompletableFuture<Void> second = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), UUID.randomUUID().toString());
+
+        //Then
+        verify(mqttClient, timeout(1000).times(2)).publish(anyString(), any(MqttMessage.class), isNull(), listener.capture());
+        assertThat(first).isNotDone();
+        assertThat(second).isNotDone();
+        listener.getAllValues().get(0).onSuccess(mock(IMqttToken.class));
+        listener.getAllValues().get(1).onFailure(mock(IMqttToken.class), new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+        assertThat(first).isCompleted();
+        assertThat(second).isCompletedExceptionally();
+    }
+
+    @Test
+    public void sendMessageAsync_whenConnectionFails_shouldReturnFailedFuture() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final String message = UUID.randomUUID().toString();
+        doThrow(new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR)).when(mqttClient).connect(any(MqttConnectOptions.class));
+
+        //When
+        final CompletableFuture<Void> result = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), UUID.randomUUID().toString());
+        result.handle((ignored, e) -> null).get(1, TimeUnit.SECONDS);
+
+        //Then
+        assertThat(result).isCompletedExceptionally();
+        verify(mqttClient, never()).publish(anyString(), any(MqttMessage.class), any(), any(IMqttActionListener.class));
+    }
+
+    @Test
+    public void sendMessageAsync_whenSamePayloadSentToSeveralDevices_shouldShareTheEncodedBody() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final MessagePayload payload = MessagePayload.of(apiKey, UUID.randomUUID().toString(), false, 1);
+        final String unitId1 = UUID.randomUUID().toString();
+        final String unitId2 = UUID.randomUUID().toString();
+        acknowledgePublications();
+
+        //When
+        mqttBrokerClient.sendMessageAsync(payload, unitId1).get(1, TimeUnit.SECONDS);
+        mqttBrokerClient.sendMessageAsync(payload, unitId2).get(1, TimeUnit.SECONDS);
+
+        //Then
+        final ArgumentCaptor<MqttMessage> mqttMessage = ArgumentCaptor.forClass(MqttMessage.class);
+        verify(mqttClient).publish(eq(apiKey + "/" + unitId1), mqttMessage.capture(), isNull(), any(IMqttActionListener.class));
+        verify(mqttClient).publish(eq(apiKey + "/" + unitId2), mqttMessage.capture(), isNull(), any(IMqttActionListener.class));
+        assertThat(mqttMessage.getAllValues().get(0).getPayload())
+                .isSameAs(payload.getBody())
+                .isSameAs(mqttMessage.getAllValues().get(1).getPayload());
+    }
+
+    @Test
+    public void sendMessageAsync_whenQosIsZero_shouldCompleteOnceWritten() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final String message = UUID.randomUUID().toString();
+        doReturn(true).when(mqttClient).isConnected();
+        acknowledgePublications();
+
+        //When
+        final CompletableFuture<Void> first = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 0), UUID.randomUUID().toString());
+        final CompletableFuture<Void> second = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 0), UUID.randomUUID().toString());
+        final CompletableFuture<Void> third = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 0), UUID.randomUUID().toString());
+        CompletableFuture.allOf(first, second, third).get(1, TimeUnit.SECONDS);
+
+        //Then
+        final ArgumentCaptor<MqttMessage> mqttMessage = ArgumentCaptor.forClass(MqttMessage.class);
+        verify(mqttClient, times(3)).publish(anyString(), mqttMessage.capture(), isNull(), any(IMqttActionListener.class));
+        assertThat(mqttMessage.getAllValues()).extracting(MqttMessage::getQos).containsOnly(0);
+    }
+
+    @Test
+    public void sendMessageAsync_whenQosOneWindowIsFull_shouldStillPublishQosZero() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final String message = UUID.randomUUID().toString();
+        final ArgumentCaptor<MqttConnectOptions> options = ArgumentCaptor.forClass(MqttConnectOptions.class);
+        doReturn(false).doReturn(true).when(mqttClient).isConnected();
+        // QoS 1 publications are never acknowledged, QoS 0 ones are written right away
+        doAnswer(invocation -> {
+            if (((MqttMessage) invocation.getArguments()[1]).getQos() == 0) {
+                ((IMqttActionListener) invocation.getArguments()[3]).onSuccess(mock(IMqttToken.class));
+            }
+            return mock(IMqttToken.class);
+        }).when(mqttClient).publish(anyString(), any(MqttMessage.class), any(), any(IMqttActionListener.class));
+        final CompletableFuture<Void> firstAcknowledged = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), UUID.randomUUID().toString());
+        final CompletableFuture<Void> secondAcknowledged = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), UUID.randomUUID().toString());
+
+        //When
+        final CompletableFuture<?>[] unacknowledged = new CompletableFuture<?>[5];
+        for (int i = 0; i < unacknowledged.length; i++) {
+            unacknowledged[i] = mqttBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 0), UUID.randomUUID().toString());
+        }
+        CompletableFuture.allOf(unacknowledged).get(1, TimeUnit.SECONDS);
+
+        //Then
+        verify(mqttClient).connect(options.capture());
+        assertThat(options.getValue().getMaxInflight()).isEqualTo(4);
+        assertThat(firstAcknowledged).isNotDone();
+        assertThat(secondAcknowledged).isNotDone();
+    }
+
+    @Test
+    public void sendMessageAsync_whenSeveralShards_shouldAlwaysPublishTopicThroughSameConnection() throws Exception {
+        //Given
+        final PahoMQTTBrokerClient shardedClient = new PahoMQTTBrokerClient(URI, 4, 0, true, 1000L, true, 2, mqttPahoClientFactory);
+        final String apiKey = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final String message = UUID.randomUUID().toString();
+        acknowledgePublications();
+
+        //When
+        for (int i = 0; i < 10; i++) {
+            shardedClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), unitId).get(1, TimeUnit.SECONDS);
+        }
+
+        //Then
+        try {
+            verify(mqttPahoClientFactory, times(1)).getAsyncClientInstance(eq(URI), anyString());
+            assertThat(shardedClient.metrics())
+                    .extracting("name", "value")
+                    .contains(tuple("mqtt.shards", 4), tuple("mqtt.published", 10L))
+                    .containsOnlyOnce(tuple("mqtt.shard." + ConsistentHash.bucket(apiKey + "/" + unitId, 4) + ".published", 10L));
+        } finally {
+            shardedClient.close();
+        }
+    }
+
+    private void acknowledgePublications() throws MqttException {
+        doAnswer(invocation -> {
+            ((IMqttActionListener) invocation.getArguments()[3]).onSuccess(mock(IMqttToken.class));
+            return mock(IMqttToken.class);
+        }).when(mqttClient).publish(anyString(), any(MqttMessage.class), any(), any(IMqttActionListener.class));
+    }
+
+}
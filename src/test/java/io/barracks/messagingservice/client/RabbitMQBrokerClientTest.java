@@ -0,0 +1,164 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.client;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import io.barracks.messagingservice.model.MessagePayload;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RabbitMQBrokerClientTest {
+
+    private static final String EXCHANGE = "amq.topic";
+
+    @Mock
+    private ConnectionFactory connectionFactory;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private Channel channel;
+
+    private RabbitMQBrokerClient rabbitMQBrokerClient;
+
+    @Before
+    public void setUp() throws Exception {
+        rabbitMQBrokerClient = new RabbitMQBrokerClient(EXCHANGE, 1, true, 16, connectionFactory);
+        doReturn(connection).when(connectionFactory).createConnection();
+        doReturn(channel).when(connection).createChannel(false);
+        doReturn(true).when(channel).isOpen();
+    }
+
+    @Test
+    public void sendMessageAsync_whenAllIsFine_shouldPublishOnTopicExchangeWithMqttRoutingKey() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final String unitId = "device.1";
+        final String message = UUID.randomUUID().toString();
+        final ArgumentCaptor<AMQP.BasicProperties> properties = ArgumentCaptor.forClass(AMQP.BasicProperties.class);
+        doReturn(1L).when(channel).getNextPublishSeqNo();
+
+        //When
+        final CompletableFuture<Void> result = rabbitMQBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, message, false, 1), unitId);
+
+        //Then
+        verify(channel).confirmSelect();
+        verify(channel).basicPublish(eq(EXCHANGE), eq(apiKey + ".device/1"), properties.capture(), eq(message.getBytes(StandardCharsets.UTF_8)));
+        assertThat(properties.getValue().getHeaders()).containsEntry(RabbitMQBrokerClient.MQTT_QOS_HEADER, 1);
+        assertThat(result).isNotDone();
+    }
+
+    @Test
+    public void sendMessageAsync_whenBrokerConfirmsMultiple_shouldCompleteTheWholeBatch() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final ArgumentCaptor<ConfirmListener> listener = ArgumentCaptor.forClass(ConfirmListener.class);
+        doReturn(1L).doReturn(2L).doReturn(3L).when(channel).getNextPublishSeqNo();
+
+        //When
+        final CompletableFuture<Void> first = rabbitMQBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, "1", false, 1), UUID.randomUUID().toString());
+        final CompletableFuture<Void> second = rabbitMQBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, "2", false, 1), UUID.randomUUID().toString());
+        final CompletableFuture<Void> third = rabbitMQBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, "3", false, 1), UUID.randomUUID().toString());
+        verify(channel).addConfirmListener(listener.capture());
+        listener.getValue().handleAck(2L, true);
+        listener.getValue().handleNack(3L, false);
+
+        //Then
+        assertThat(first).isCompleted();
+        assertThat(second).isCompleted();
+        assertThat(third).isCompletedExceptionally();
+    }
+
+    @Test
+    public void sendMessageAsync_whenChannelCannotBeOpened_shouldReturnFailedFuture() throws Exception {
+        //Given
+        doThrow(new RuntimeException("Connection refused")).when(connectionFactory).createConnection();
+
+        //When
+        final CompletableFuture<Void> result = rabbitMQBrokerClient.sendMessageAsync(MessagePayload.of(UUID.randomUUID().toString(), "message", false, 1), UUID.randomUUID().toString());
+
+        //Then
+        assertThat(result).isCompletedExceptionally();
+        verify(channel, never()).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    }
+
+    @Test
+    public void sendMessageAsync_whenChannelShutsDownWithPendingConfirms_shouldFailThem() throws Exception {
+        //Given
+        final String apiKey = UUID.randomUUID().toString();
+        final ArgumentCaptor<ShutdownListener> listener = ArgumentCaptor.forClass(ShutdownListener.class);
+        doReturn(1L).doReturn(2L).when(channel).getNextPublishSeqNo();
+        final CompletableFuture<Void> first = rabbitMQBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, "1", false, 1), UUID.randomUUID().toString());
+        final CompletableFuture<Void> second = rabbitMQBrokerClient.sendMessageAsync(MessagePayload.of(apiKey, "2", false, 1), UUID.randomUUID().toString());
+        verify(channel).addShutdownListener(listener.capture());
+
+        //When
+        listener.getValue().shutdownCompleted(new ShutdownSignalException(true, false, null, connection));
+
+        //Then
+        assertThat(first).isCompletedExceptionally();
+        assertThat(second).isCompletedExceptionally();
+    }
+
+    @Test
+    public void sendMessageAsync_whenRetained_shouldRejectWithoutPublishing() throws Exception {
+        //When
+        final CompletableFuture<Void> result = rabbitMQBrokerClient.sendMessageAsync(MessagePayload.of(UUID.randomUUID().toString(), "message", true, 1), UUID.randomUUID().toString());
+
+        //Then
+        assertThat(result).isCompletedExceptionally();
+        assertThat(rabbitMQBrokerClient.supportsRetained()).isFalse();
+        verify(channel, never()).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    }
+
+    @Test
+    public void toRoutingKey_shouldSwapTopicSeparators() {
+        assertThat(RabbitMQBrokerClient.toRoutingKey("api.key/unit/id")).isEqualTo("api/key.unit.id");
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.config;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.test.util.EnvironmentTestUtils;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.boot.web.client.RestTemplateCustomizer;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class HttpClientConfigTest {
+
+    private AnnotationConfigApplicationContext context;
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void httpClient_whenPoolingEnabled_shouldApplyLimitsTimeoutsAndMetrics() {
+        // Given
+        load("true", "https://devices.barracks.io=120");
+
+        // When
+        final PoolingHttpClientConnectionManager connectionManager = context.getBean(PoolingHttpClientConnectionManager.class);
+        final RequestConfig requestConfig = ((Configurable) context.getBean(CloseableHttpClient.class)).getConfig();
+
+        // Then
+        assertThat(connectionManager.getMaxTotal()).isEqualTo(200);
+        assertThat(connectionManager.getDefaultMaxPerRoute()).isEqualTo(50);
+        assertThat(connectionManager.getMaxPerRoute(HttpClientConfig.toRoute("https://devices.barracks.io:443"))).isEqualTo(120);
+        assertThat(connectionManager.getMaxPerRoute(HttpClientConfig.toRoute("https://auth.barracks.io"))).isEqualTo(50);
+        assertThat(requestConfig.getConnectTimeout()).isEqualTo(2000);
+        assertThat(requestConfig.getConnectionRequestTimeout()).isEqualTo(2000);
+        assertThat(requestConfig.getSocketTimeout()).isEqualTo(10000);
+        assertThat(context.getBean(PublicMetrics.class).metrics())
+                .extracting("name", "value")
+                .contains(tuple("http.pool.max", 200), tuple("http.pool.leased", 0));
+    }
+
+    @Test
+    public void restTemplateBuilder_whenPoolingEnabled_shouldUseThePooledClient() {
+        // Given
+        load("true", "");
+
+        // When
+        final RestTemplate restTemplate = new RestTemplateBuilder(context.getBean(RestTemplateCustomizer.class)).build();
+
+        // Then
+        assertThat(restTemplate.getRequestFactory()).isInstanceOf(HttpComponentsClientHttpRequestFactory.class);
+        assertThat(((HttpComponentsClientHttpRequestFactory) restTemplate.getRequestFactory()).getHttpClient())
+                .isSameAs(context.getBean(CloseableHttpClient.class));
+    }
+
+    @Test
+    public void httpClient_whenPoolingDisabled_shouldNotBeCreated() {
+        // Given
+        load("false", "");
+
+        // Then
+        assertThat(context.getBeansOfType(PoolingHttpClientConnectionManager.class)).isEmpty();
+        assertThat(context.getBeansOfType(RestTemplateCustomizer.class)).isEmpty();
+    }
+
+    private void load(String enabled, String routeMax) {
+        context = new AnnotationConfigApplicationContext();
+        EnvironmentTestUtils.addEnvironment(
+                context,
+                "io.barracks.http.pooled.enabled=" + enabled,
+                "io.barracks.http.pooled.max_total=200",
+                "io.barracks.http.pooled.max_per_route=50",
+                "io.barracks.http.pooled.route_max=" + routeMax,
+                "io.barracks.http.pooled.connect_timeout=2000",
+                "io.barracks.http.pooled.read_timeout=10000",
+                "io.barracks.http.pooled.idle_timeout=30000",
+                "io.barracks.http.pooled.gzip=true"
+        );
+        context.register(HttpClientConfig.class);
+        context.refresh();
+    }
+}
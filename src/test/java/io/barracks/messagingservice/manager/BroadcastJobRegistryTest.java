@@ -0,0 +1,118 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import io.barracks.messagingservice.model.BroadcastJob;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BroadcastJobRegistryTest {
+
+    private final String userId = UUID.randomUUID().toString();
+
+    @Test
+    public void register_whenFinishedJobIsPastRetention_shouldEvictIt() throws Exception {
+        // Given
+        final BroadcastJobRegistry registry = new BroadcastJobRegistry(1L, 100);
+        final BroadcastJob finished = registry.register(userId);
+        finished.start();
+        registry.complete(finished, true);
+        Thread.sleep(10);
+
+        // When
+        final BroadcastJob running = registry.register(userId);
+
+        // Then
+        assertThat(registry.find(userId, finished.getId())).isEmpty();
+        assertThat(registry.find(userId, running.getId())).contains(running);
+    }
+
+    @Test
+    public void register_whenFinishedJobIsWithinRetention_shouldKeepIt() {
+        // Given
+        final BroadcastJobRegistry registry = new BroadcastJobRegistry(60000L, 100);
+        final BroadcastJob finished = registry.register(userId);
+        registry.complete(finished, false);
+
+        // When
+        registry.register(userId);
+
+        // Then
+        assertThat(registry.find(userId, finished.getId())).contains(finished);
+        assertThat(registry.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void register_whenMaxSizeReached_shouldEvictTheFirstFinishedJobs() {
+        // Given
+        final BroadcastJobRegistry registry = new BroadcastJobRegistry(60000L, 3);
+        final BroadcastJob first = registry.register(userId);
+        final BroadcastJob second = registry.register(userId);
+        final BroadcastJob third = registry.register(userId);
+        registry.complete(second, true);
+        registry.complete(first, true);
+
+        // When
+        final BroadcastJob fourth = registry.register(userId);
+
+        // Then
+        assertThat(registry.size()).isEqualTo(3);
+        assertThat(registry.find(userId, second.getId())).isEmpty();
+        assertThat(registry.find(userId, first.getId())).contains(first);
+        assertThat(registry.find(userId, third.getId())).contains(third);
+        assertThat(registry.find(userId, fourth.getId())).contains(fourth);
+    }
+
+    @Test
+    public void register_whenMaxSizeReachedWithRunningJobsOnly_shouldNeverEvictThem() {
+        // Given
+        final BroadcastJobRegistry registry = new BroadcastJobRegistry(1L, 2);
+        final BroadcastJob first = registry.register(userId);
+        final BroadcastJob second = registry.register(userId);
+        first.start();
+
+        // When
+        final BroadcastJob third = registry.register(userId);
+
+        // Then
+        assertThat(registry.size()).isEqualTo(3);
+        assertThat(registry.find(userId, first.getId())).contains(first);
+        assertThat(registry.find(userId, second.getId())).contains(second);
+        assertThat(registry.find(userId, third.getId())).contains(third);
+    }
+
+    @Test
+    public void find_whenJobBelongsToAnotherUser_shouldReturnEmpty() {
+        // Given
+        final BroadcastJobRegistry registry = new BroadcastJobRegistry(60000L, 100);
+        final BroadcastJob job = registry.register(userId);
+
+        // When / Then
+        assertThat(registry.find(UUID.randomUUID().toString(), job.getId())).isEmpty();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import io.barracks.messagingservice.client.DeviceServiceClient;
+import io.barracks.messagingservice.model.BarracksQuery;
+import io.barracks.messagingservice.model.DeviceIdPage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.domain.Pageable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeviceDirectoryTest {
+
+    private static final int PAGE_SIZE = 2;
+
+    private static final String USER_ID = "userId";
+
+    @Mock
+    private DeviceServiceClient deviceServiceClient;
+
+    private DeviceDirectory deviceDirectory;
+
+    @Before
+    public void setUp() {
+        final PageSizePolicy pageSizePolicy = new PageSizePolicy(PAGE_SIZE, false, PAGE_SIZE, PAGE_SIZE, 500L);
+        deviceDirectory = new DeviceDirectory(deviceServiceClient, pageSizePolicy, true, 3600000L, 1000000L);
+    }
+
+    @Test
+    public void getDirectory_whenCalledTwice_shouldOnlyRequestDevicesAfterHighWater() {
+        // Given
+        doAnswer(streamPage(3, "unit1", "2017-01-01T00:00:00Z", "unit2", "2017-01-02T00:00:00Z"))
+                .doAnswer(streamPage(1, "unit3", "2017-01-03T00:00:00Z"))
+                .doAnswer(streamPage(1, "unit4", "2017-01-04T00:00:00Z"))
+                .when(deviceServiceClient).getDeviceEntries(eq(USER_ID), any(Pageable.class), any(BarracksQuery.class), any());
+
+        // When
+        final TenantDirectory first = deviceDirectory.getDirectory(USER_ID);
+        final TenantDirectory second = deviceDirectory.getDirectory(USER_ID);
+
+        // Then
+        final ArgumentCaptor<BarracksQuery> queries = ArgumentCaptor.forClass(BarracksQuery.class);
+        verify(deviceServiceClient, times(3)).getDeviceEntries(eq(USER_ID), any(Pageable.class), queries.capture(), any());
+        assertThat(queries.getAllValues().get(0).toJsonString()).doesNotContain("unitId");
+        assertThat(queries.getAllValues().get(1).toJsonString()).contains("unit2");
+        assertThat(queries.getAllValues().get(2).toJsonString()).contains("unit3");
+        assertThat(first.getUnitIds(0, first.size())).containsExactly("unit1", "unit2", "unit3");
+        assertThat(first.getFirstSeen(2)).isEqualTo(1483401600000L);
+        assertThat(second.getUnitIds(0, second.size())).containsExactly("unit1", "unit2", "unit3", "unit4");
+        assertThat(second.getHighWaterUnitId()).isEqualTo("unit4");
+    }
+
+    @Test
+    public void getDirectory_whenNoNewDevice_shouldReturnSameDirectory() {
+        // Given
+        doAnswer(streamPage(1, "unit1", "2017-01-01T00:00:00Z"))
+                .doAnswer(streamPage(0))
+                .when(deviceServiceClient).getDeviceEntries(eq(USER_ID), any(Pageable.class), any(BarracksQuery.class), any());
+
+        // When
+        final TenantDirectory first = deviceDirectory.getDirectory(USER_ID);
+        final TenantDirectory second = deviceDirectory.getDirectory(USER_ID);
+
+        // Then
+        assertThat(second).isSameAs(first);
+        assertThat(second.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void getDirectory_whenSameUserIsRefreshing_shouldShareTheRefresh() throws Exception {
+        // Given
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Answer<DeviceIdPage> page = streamPage(1, "unit1", "2017-01-01T00:00:00Z");
+        doAnswer(invocation -> {
+            fetching.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return page.answer(invocation);
+        }).when(deviceServiceClient).getDeviceEntries(eq(USER_ID), any(Pageable.class), any(BarracksQuery.class), any());
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            // When
+            final Future<TenantDirectory> first = executor.submit(() -> deviceDirectory.getDirectory(USER_ID));
+            fetching.await(5, TimeUnit.SECONDS);
+            final Future<TenantDirectory> second = executor.submit(() -> deviceDirectory.getDirectory(USER_ID));
+            Thread.sleep(100);
+            release.countDown();
+
+            // Then
+            assertThat(second.get(5, TimeUnit.SECONDS)).isSameAs(first.get(5, TimeUnit.SECONDS));
+            verify(deviceServiceClient, times(1)).getDeviceEntries(eq(USER_ID), any(Pageable.class), any(BarracksQuery.class), any());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void getDirectory_whenAnotherUserIsRefreshing_shouldNotWaitForIt() throws Exception {
+        // Given
+        // Both ids have the same hash code, so they would share any lock picked from it
+        final String blockedUserId = "Aa";
+        final String otherUserId = "BB";
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Answer<DeviceIdPage> page = streamPage(1, "unit1", "2017-01-01T00:00:00Z");
+        doAnswer(invocation -> {
+            fetching.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return page.answer(invocation);
+        }).when(deviceServiceClient).getDeviceEntries(eq(blockedUserId), any(Pageable.class), any(BarracksQuery.class), any());
+        doAnswer(streamPage(1, "unit2", "2017-01-02T00:00:00Z"))
+                .when(deviceServiceClient).getDeviceEntries(eq(otherUserId), any(Pageable.class), any(BarracksQuery.class), any());
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            final Future<TenantDirectory> blocked = executor.submit(() -> deviceDirectory.getDirectory(blockedUserId));
+            fetching.await(5, TimeUnit.SECONDS);
+
+            // When
+            final Future<TenantDirectory> other = executor.submit(() -> deviceDirectory.getDirectory(otherUserId));
+
+            // Then
+            assertThat(other.get(1, TimeUnit.SECONDS).getUnitIds(0, 1)).containsExactly("unit2");
+            assertThat(blocked.isDone()).isFalse();
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Answer<DeviceIdPage> streamPage(long totalElements, String... entries) {
+        return invocation -> {
+            final BiConsumer<String, CharSequence> consumer = (BiConsumer<String, CharSequence>) invocation.getArguments()[3];
+            final List<String> values = Arrays.asList(entries);
+            for (int i = 0; i < values.size(); i += 2) {
+                consumer.accept(values.get(i), values.get(i + 1));
+            }
+            final int count = values.size() / 2;
+            return new DeviceIdPage(
+                    count,
+                    totalElements,
+                    (totalElements + PAGE_SIZE - 1) / PAGE_SIZE,
+                    count == 0 ? null : values.get(values.size() - 2),
+                    count == 0 ? null : values.get(values.size() - 1)
+            );
+        };
+    }
+}
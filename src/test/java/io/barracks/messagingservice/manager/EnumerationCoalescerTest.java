@@ -0,0 +1,198 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class EnumerationCoalescerTest {
+
+    private static final long WINDOW = 1000L;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    private final AtomicInteger walks = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void enumerate_whenSameAudienceDuringWindow_shouldWalkOnceForBoth() throws Exception {
+        // Given
+        final EnumerationCoalescer coalescer = new EnumerationCoalescer(WINDOW);
+        final List<String> first = new CopyOnWriteArrayList<>();
+        final List<String> second = new CopyOnWriteArrayList<>();
+
+        // When
+        final Future<?> firstBroadcast = executor.submit(() -> enumerate(coalescer, "user:*", countingSource("unit1", "unit2"), first));
+        final Future<?> secondBroadcast = executor.submit(() -> enumerate(coalescer, "user:*", countingSource("unit1", "unit2"), second));
+        firstBroadcast.get();
+        secondBroadcast.get();
+
+        // Then
+        assertThat(walks.get()).isEqualTo(1);
+        assertThat(first).containsExactly("unit1", "unit2");
+        assertThat(second).containsExactly("unit1", "unit2");
+        assertThat(coalescer.metrics()).extracting("name", "value").contains(tuple("enumeration.joins", 1L));
+    }
+
+    @Test
+    public void enumerate_whenDifferentAudiences_shouldWalkEach() throws Exception {
+        // Given
+        final EnumerationCoalescer coalescer = new EnumerationCoalescer(WINDOW);
+        final List<String> first = new CopyOnWriteArrayList<>();
+        final List<String> second = new CopyOnWriteArrayList<>();
+
+        // When
+        final Future<?> firstBroadcast = executor.submit(() -> enumerate(coalescer, "user:*", countingSource("unit1"), first));
+        final Future<?> secondBroadcast = executor.submit(() -> enumerate(coalescer, "other:*", countingSource("unit2"), second));
+        firstBroadcast.get();
+        secondBroadcast.get();
+
+        // Then
+        assertThat(walks.get()).isEqualTo(2);
+        assertThat(first).containsExactly("unit1");
+        assertThat(second).containsExactly("unit2");
+    }
+
+    @Test
+    public void enumerate_whenSharedWalkFails_shouldFailEverySubscriber() throws Exception {
+        // Given
+        final EnumerationCoalescer coalescer = new EnumerationCoalescer(WINDOW);
+        final Supplier<DevicePageSource> failingSource = () -> handler -> {
+            walks.incrementAndGet();
+            throw new IllegalStateException("Device service unavailable");
+        };
+
+        // When
+        final Future<?> firstBroadcast = executor.submit(() -> enumerate(coalescer, "user:*", failingSource, new CopyOnWriteArrayList<>()));
+        final Future<?> secondBroadcast = executor.submit(() -> enumerate(coalescer, "user:*", failingSource, new CopyOnWriteArrayList<>()));
+
+        // Then
+        assertThatExceptionOfType(ExecutionException.class).isThrownBy(firstBroadcast::get)
+                .withCauseInstanceOf(IllegalStateException.class);
+        assertThatExceptionOfType(ExecutionException.class).isThrownBy(secondBroadcast::get)
+                .withCauseInstanceOf(IllegalStateException.class);
+        assertThat(walks.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void enumerate_whenWindowIsZero_shouldWalkDirectly() throws Exception {
+        // Given
+        final EnumerationCoalescer coalescer = new EnumerationCoalescer(0L);
+        final List<String> received = new CopyOnWriteArrayList<>();
+
+        // When
+        coalescer.enumerate("user:*", countingSource("unit1", "unit2"), page -> {
+            received.addAll(page.getUnitIds());
+            return CompletableFuture.completedFuture(null);
+        }).join();
+
+        // Then
+        assertThat(walks.get()).isEqualTo(1);
+        assertThat(received).containsExactly("unit1", "unit2");
+    }
+
+    @Test
+    public void enumerate_whenSourceWalksWithoutBlocking_shouldShareTheWalkWithoutWaitingForIt() throws Exception {
+        // Given
+        final EnumerationCoalescer coalescer = new EnumerationCoalescer(WINDOW);
+        final CompletableFuture<DevicePage> fetched = new CompletableFuture<>();
+        final Supplier<DevicePageSource> asyncSource = () -> new DevicePageSource() {
+            @Override
+            public void forEachPage(DevicePageHandler handler) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<Void> forEachPageAsync(Function<DevicePage, CompletableFuture<Void>> handler) {
+                walks.incrementAndGet();
+                return fetched.thenCompose(handler);
+            }
+        };
+        final List<String> first = new CopyOnWriteArrayList<>();
+        final List<String> second = new CopyOnWriteArrayList<>();
+        final Future<CompletableFuture<Void>> firstBroadcast = executor.submit(() -> coalescer.enumerate("user:*", asyncSource, collecting(first)));
+        final Future<CompletableFuture<Void>> secondBroadcast = executor.submit(() -> coalescer.enumerate("user:*", asyncSource, collecting(second)));
+        final CompletableFuture<Void> firstDone = firstBroadcast.get();
+        final CompletableFuture<Void> secondDone = secondBroadcast.get();
+        assertThat(firstDone).isNotDone();
+        assertThat(secondDone).isNotDone();
+
+        // When
+        fetched.complete(new DevicePage(Arrays.asList("unit1"), 1));
+
+        // Then
+        assertThat(firstDone).isCompleted();
+        assertThat(secondDone).isCompleted();
+        assertThat(walks.get()).isEqualTo(1);
+        assertThat(first).containsExactly("unit1");
+        assertThat(second).containsExactly("unit1");
+    }
+
+    private Supplier<DevicePageSource> countingSource(String... unitIds) {
+        return () -> handler -> {
+            walks.incrementAndGet();
+            for (String unitId : unitIds) {
+                handler.accept(new DevicePage(Arrays.asList(unitId), 1));
+            }
+        };
+    }
+
+    private Void enumerate(EnumerationCoalescer coalescer, String audienceKey, Supplier<DevicePageSource> source, List<String> received) throws InterruptedException {
+        try {
+            coalescer.enumerate(audienceKey, source, collecting(received)).join();
+        } catch (CompletionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+        return null;
+    }
+
+    private static Function<DevicePage, CompletableFuture<Void>> collecting(List<String> received) {
+        return page -> {
+            received.addAll(page.getUnitIds());
+            return CompletableFuture.completedFuture(null);
+        };
+    }
+}
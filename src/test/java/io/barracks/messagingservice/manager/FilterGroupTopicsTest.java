@@ -0,0 +1,234 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import io.barracks.messagingservice.client.DeviceServiceClient;
+import io.barracks.messagingservice.client.MQTTBrokerClient;
+import io.barracks.messagingservice.model.BarracksQuery;
+import io.barracks.messagingservice.model.DeviceIdPage;
+import io.barracks.messagingservice.model.MessagePayload;
+import io.barracks.messagingservice.model.User;
+import io.barracks.messagingservice.utils.FilterUtils;
+import io.barracks.messagingservice.utils.UserUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.data.domain.Pageable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FilterGroupTopicsTest {
+
+    private static final String FILTER_NAME = "hot";
+
+    @Mock
+    private DeviceServiceClient deviceServiceClient;
+
+    @Mock
+    private MQTTBrokerClient mqttBrokerClient;
+
+    private User user;
+
+    private FilterGroupTopics filterGroupTopics;
+
+    @Before
+    public void setUp() {
+        user = UserUtils.getUser();
+        final PageSizePolicy pageSizePolicy = new PageSizePolicy(100, false, 100, 100, 500L);
+        final DeviceDirectory deviceDirectory = new DeviceDirectory(deviceServiceClient, pageSizePolicy, false, 3600000L, 1000000L);
+        doReturn(true).when(mqttBrokerClient).supportsRetained();
+        filterGroupTopics = new FilterGroupTopics(
+                deviceServiceClient,
+                mqttBrokerClient,
+                deviceDirectory,
+                pageSizePolicy,
+                new String[]{user.getId() + ":" + FILTER_NAME},
+                0L
+        );
+        doReturn(FilterUtils.getFilter()).when(deviceServiceClient).getFilterByUserIdAndName(user.getId(), FILTER_NAME);
+        doReturn(CompletableFuture.completedFuture(null)).when(mqttBrokerClient).sendMessageAsync(any(MessagePayload.class), anyString());
+    }
+
+    @After
+    public void tearDown() {
+        filterGroupTopics.close();
+    }
+
+    @Test
+    public void isEnabled_shouldOnlyMatchConfiguredFilters() {
+        // Then
+        assertThat(filterGroupTopics.isEnabled(user.getId(), FILTER_NAME)).isTrue();
+        assertThat(filterGroupTopics.isEnabled(user.getId(), "cold")).isFalse();
+        assertThat(filterGroupTopics.isEnabled("other", FILTER_NAME)).isFalse();
+    }
+
+    @Test
+    public void isEnabled_whenBrokerDoesNotSupportRetainedMessages_shouldBeDisabled() {
+        // Given
+        doReturn(false).when(mqttBrokerClient).supportsRetained();
+        final PageSizePolicy pageSizePolicy = new PageSizePolicy(100, false, 100, 100, 500L);
+        final FilterGroupTopics unsupported = new FilterGroupTopics(
+                deviceServiceClient,
+                mqttBrokerClient,
+                new DeviceDirectory(deviceServiceClient, pageSizePolicy, false, 3600000L, 1000000L),
+                pageSizePolicy,
+                new String[]{user.getId() + ":" + FILTER_NAME},
+                0L
+        );
+
+        // When
+        final boolean enabled = unsupported.isEnabled(user.getId(), FILTER_NAME);
+        unsupported.close();
+
+        // Then
+        assertThat(enabled).isFalse();
+    }
+
+    @Test
+    public void getMembership_whenMembershipUnchanged_shouldShareTheMembersSnapshot() {
+        // Given
+        doAnswer(streamPage("unit1", "unit2"))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        // When
+        filterGroupTopics.getMembership(user, FILTER_NAME);
+        final FilterGroupTopics.Membership second = filterGroupTopics.getMembership(user, FILTER_NAME);
+        final FilterGroupTopics.Membership third = filterGroupTopics.getMembership(user, FILTER_NAME);
+
+        // Then
+        assertThat(second.getSubscribed()).containsOnly("unit1", "unit2");
+        assertThat(third.getSubscribed()).isSameAs(second.getSubscribed());
+        assertThat(third.getJoining()).isEmpty();
+    }
+
+    @Test
+    public void metrics_whenRefreshInProgress_shouldNotWaitForIt() throws Exception {
+        // Given
+        final CountDownLatch publishing = new CountDownLatch(1);
+        final CompletableFuture<Void> published = new CompletableFuture<>();
+        doAnswer(invocation -> {
+            publishing.countDown();
+            return published;
+        }).when(mqttBrokerClient).sendMessageAsync(any(MessagePayload.class), anyString());
+        doAnswer(streamPage("unit1"))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        final CompletableFuture<FilterGroupTopics.Membership> membership = CompletableFuture.supplyAsync(() -> filterGroupTopics.getMembership(user, FILTER_NAME));
+        assertThat(publishing.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When
+        final Collection<Metric<?>> metrics = CompletableFuture.supplyAsync(filterGroupTopics::metrics).get(5, TimeUnit.SECONDS);
+        published.complete(null);
+
+        // Then
+        assertThat(metrics)
+                .extracting("name", "value")
+                .contains(tuple("filter_groups.groups", 1), tuple("filter_groups.members", 0L));
+        assertThat(membership.get(5, TimeUnit.SECONDS).getJoining()).containsOnly("unit1");
+    }
+
+    @Test
+    public void getMembership_whenMembershipChanges_shouldPublishRetainedJoinAndLeaveMessages() {
+        // Given
+        doAnswer(streamPage("unit1", "unit2"))
+                .doAnswer(streamPage("unit2", "unit3"))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        // When
+        final FilterGroupTopics.Membership first = filterGroupTopics.getMembership(user, FILTER_NAME);
+        final FilterGroupTopics.Membership second = filterGroupTopics.getMembership(user, FILTER_NAME);
+
+        // Then
+        assertThat(first.getSubscribed()).isEmpty();
+        assertThat(first.getJoining()).containsOnly("unit1", "unit2");
+        assertThat(second.getSubscribed()).containsOnly("unit2");
+        assertThat(second.getJoining()).containsOnly("unit3");
+        final ArgumentCaptor<MessagePayload> payloads = ArgumentCaptor.forClass(MessagePayload.class);
+        final ArgumentCaptor<String> topics = ArgumentCaptor.forClass(String.class);
+        verify(mqttBrokerClient, times(4)).sendMessageAsync(payloads.capture(), topics.capture());
+        assertThat(topics.getAllValues()).hasSize(4).containsOnly("unit1/groups/hot", "unit2/groups/hot", "unit3/groups/hot");
+        assertThat(payloads.getAllValues()).extracting(MessagePayload::isRetained).containsOnly(true);
+        assertThat(new String(payloads.getAllValues().get(3).getBody()))
+                .contains(user.getApiKey() + "/filters/hot")
+                .contains("\"member\":false");
+        assertThat(filterGroupTopics.metrics())
+                .extracting("name", "value")
+                .contains(tuple("filter_groups.joins", 3L), tuple("filter_groups.leaves", 1L), tuple("filter_groups.drift", 2L));
+    }
+
+    @Test
+    public void getMembership_whenJoinFails_shouldRetryOnNextRefresh() {
+        // Given
+        final CompletableFuture<Void> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new IllegalStateException("Broker unavailable"));
+        doReturn(failure).doReturn(CompletableFuture.completedFuture(null))
+                .when(mqttBrokerClient).sendMessageAsync(any(MessagePayload.class), eq("unit1/groups/hot"));
+        doAnswer(streamPage("unit1"))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        // When
+        final FilterGroupTopics.Membership first = filterGroupTopics.getMembership(user, FILTER_NAME);
+        final FilterGroupTopics.Membership second = filterGroupTopics.getMembership(user, FILTER_NAME);
+        final FilterGroupTopics.Membership third = filterGroupTopics.getMembership(user, FILTER_NAME);
+
+        // Then
+        assertThat(first.getSubscribed()).isEmpty();
+        assertThat(first.getJoining()).containsOnly("unit1");
+        assertThat(second.getSubscribed()).isEmpty();
+        assertThat(second.getJoining()).containsOnly("unit1");
+        assertThat(third.getSubscribed()).containsOnly("unit1");
+        assertThat(third.getJoining()).isEmpty();
+        verify(mqttBrokerClient, times(2)).sendMessageAsync(any(MessagePayload.class), eq("unit1/groups/hot"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Answer<DeviceIdPage> streamPage(String... unitIds) {
+        return invocation -> {
+            final Consumer<String> consumer = (Consumer<String>) invocation.getArguments()[3];
+            final List<String> devices = Arrays.asList(unitIds);
+            devices.forEach(consumer);
+            return new DeviceIdPage(devices.size(), devices.size(), 1, devices.get(devices.size() - 1), "2017-01-01T00:00:00Z");
+        };
+    }
+}
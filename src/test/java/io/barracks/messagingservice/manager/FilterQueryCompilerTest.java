@@ -0,0 +1,131 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FilterQueryCompilerTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private TenantDirectory directory;
+
+    @Before
+    public void setUp() {
+        final TenantDirectory.Builder builder = TenantDirectory.builder(0L);
+        builder.add("unit-a", OffsetDateTime.parse("2017-01-01T00:00:00Z").toInstant().toEpochMilli());
+        builder.add("unit-b", OffsetDateTime.parse("2017-01-02T00:00:00Z").toInstant().toEpochMilli());
+        builder.add("unit-c", OffsetDateTime.parse("2017-01-03T00:00:00Z").toInstant().toEpochMilli());
+        builder.add("unit-d", OffsetDateTime.parse("2017-01-04T00:00:00Z").toInstant().toEpochMilli());
+        directory = builder.build();
+    }
+
+    @Test
+    public void compile_whenComparingFirstSeen_shouldSelectDevicesInRange() throws Exception {
+        // Given
+        final JsonNode query = mapper.readTree("{\"and\":[{\"gt\":{\"firstSeen\":\"2017-01-01T00:00:00Z\"}},{\"lt\":{\"firstSeen\":\"2017-01-04T00:00:00Z\"}}]}");
+
+        // When
+        final List<String> result = select(query);
+
+        // Then
+        assertThat(result).containsExactly("unit-b", "unit-c");
+    }
+
+    @Test
+    public void compile_whenCombiningUnitIdConditions_shouldSelectMatchingDevices() throws Exception {
+        // Given
+        final JsonNode query = mapper.readTree("{\"or\":[{\"eq\":{\"unitId\":\"unit-a\"}},{\"in\":{\"unitId\":[\"unit-c\",\"unit-z\"]}},{\"gt\":{\"unitId\":\"unit-c\"}}]}");
+
+        // When
+        final List<String> result = select(query);
+
+        // Then
+        assertThat(result).containsExactly("unit-a", "unit-c", "unit-d");
+    }
+
+    @Test
+    public void compile_whenSeveralOperatorsInSameObject_shouldRequireAllOfThem() throws Exception {
+        // Given
+        final JsonNode query = mapper.readTree("{\"gt\":{\"unitId\":\"unit-a\"},\"lt\":{\"firstSeen\":\"2017-01-03T00:00:00Z\"}}");
+
+        // When
+        final List<String> result = select(query);
+
+        // Then
+        assertThat(result).containsExactly("unit-b");
+    }
+
+    @Test
+    public void compile_whenFieldIsNotInDirectory_shouldNotCompile() throws Exception {
+        // Given
+        final JsonNode query = mapper.readTree("{\"or\":[{\"eq\":{\"unitId\":\"unit-a\"}},{\"eq\":{\"customClientData.color\":\"red\"}}]}");
+
+        // When
+        final Optional<DevicePredicate> result = FilterQueryCompiler.compile(query);
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void compile_whenOperatorIsUnknown_shouldNotCompile() throws Exception {
+        // Given
+        final JsonNode query = mapper.readTree("{\"regex\":{\"unitId\":\"unit-.*\"}}");
+
+        // When
+        final Optional<DevicePredicate> result = FilterQueryCompiler.compile(query);
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void compile_whenDateIsFinerThanMilliseconds_shouldNotCompile() throws Exception {
+        // Given
+        final JsonNode query = mapper.readTree("{\"lt\":{\"firstSeen\":\"2017-01-03T00:00:00.000001Z\"}}");
+
+        // When
+        final Optional<DevicePredicate> result = FilterQueryCompiler.compile(query);
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    private List<String> select(JsonNode query) {
+        final Optional<DevicePredicate> predicate = FilterQueryCompiler.compile(query);
+        assertThat(predicate).isPresent();
+        return directory.getUnitIds(0, directory.size(), predicate.get());
+    }
+}
@@ -22,52 +22,70 @@
  * SOFTWARE.
  */
 
+
 package io.barracks.messagingservice.manager;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import io.barracks.commons.test.PagedResourcesUtils;
 import io.barracks.messagingservice.client.DeviceServiceClient;
 import io.barracks.messagingservice.client.MQTTBrokerClient;
 import io.barracks.messagingservice.client.exception.RabbitMQClientException;
+import io.barracks.messagingservice.manager.exception.BroadcastJobNotFoundException;
+import io.barracks.messagingservice.manager.exception.InvalidQosException;
+import io.barracks.messagingservice.manager.exception.RetainedMessageNotSupportedException;
 import io.barracks.messagingservice.model.BarracksQuery;
+import io.barracks.messagingservice.model.BroadcastJob;
 import io.barracks.messagingservice.model.Device;
+import io.barracks.messagingservice.model.DeviceIdPage;
 import io.barracks.messagingservice.model.Filter;
+import io.barracks.messagingservice.model.MessagePayload;
 import io.barracks.messagingservice.model.User;
 import io.barracks.messagingservice.utils.DeviceUtils;
 import io.barracks.messagingservice.utils.FilterUtils;
 import io.barracks.messagingservice.utils.UserUtils;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
-import org.mockito.Spy;
 import org.mockito.internal.verification.Times;
 import org.mockito.runners.MockitoJUnitRunner;
-import org.springframework.data.domain.PageRequest;
+import org.mockito.stubbing.Answer;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.data.domain.Pageable;
 import org.springframework.hateoas.PagedResources;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
 
-import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class MessagingServiceManagerTest {
 
-    @InjectMocks
-    @Spy
-    private MessagingServiceManager messagingServiceManager;
+    private static final int PAGE_SIZE = 100;
+
+    private static final int DEDUP_THRESHOLD = 1000;
+
+    private static final int MAX_UNION_QUERY_LENGTH = 2048;
 
     @Mock
     private MQTTBrokerClient mqttBrokerClient;
@@ -75,10 +93,50 @@ public class MessagingServiceManagerTest {
     @Mock
     private DeviceServiceClient deviceServiceClient;
 
+    private BroadcastJobRegistry broadcastJobRegistry;
+
+    private PageSizePolicy pageSizePolicy;
+
+    private DeviceDirectory deviceDirectory;
+
+    private EnumerationCoalescer enumerationCoalescer;
+
+    private TenantBroadcastTopics tenantBroadcastTopics;
+
+    private FilterGroupTopics filterGroupTopics;
+
+    private TaskExecutor broadcastExecutor;
+
+    private TaskExecutor continuationExecutor;
+
+    private AsyncTaskExecutor pageFetchExecutor;
+
+    private BroadcastProperties broadcastProperties;
+
+    private MessagingServiceManager messagingServiceManager;
+
+    @Before
+    public void setUp() {
+        broadcastJobRegistry = new BroadcastJobRegistry(60000L, 100);
+        pageSizePolicy = new PageSizePolicy(PAGE_SIZE, false, PAGE_SIZE, PAGE_SIZE, 500L);
+        deviceDirectory = new DeviceDirectory(deviceServiceClient, pageSizePolicy, false, 3600000L, 1000000L);
+        enumerationCoalescer = new EnumerationCoalescer(0L);
+        tenantBroadcastTopics = new TenantBroadcastTopics("broadcast", new String[0]);
+        filterGroupTopics = new FilterGroupTopics(deviceServiceClient, mqttBrokerClient, deviceDirectory, pageSizePolicy, new String[0], 0L);
+        broadcastExecutor = new SyncTaskExecutor();
+        continuationExecutor = new SyncTaskExecutor();
+        pageFetchExecutor = new SimpleAsyncTaskExecutor();
+        broadcastProperties = new BroadcastProperties();
+        broadcastProperties.getDedup().setMemoryThreshold(DEDUP_THRESHOLD);
+        broadcastProperties.getFilterUnion().setMaxQueryLength(MAX_UNION_QUERY_LENGTH);
+        messagingServiceManager = spy(buildManager());
+        doReturn(CompletableFuture.completedFuture(null)).when(mqttBrokerClient).sendMessageAsync(any(MessagePayload.class), anyString());
+        doReturn(true).when(mqttBrokerClient).supportsRetained();
+    }
+
     @Test
-    public void sendMessage_whenUnitIdAndFiltersSpecifiedAndSendMessageHasBeenSuccessful_shouldReturnAsyncResultWithTrue() throws InterruptedException, ExecutionException, TimeoutException {
+    public void sendMessage_whenUnitIdAndFiltersSpecifiedAndSendMessageHasBeenSuccessful_shouldCompleteJob() {
         //Given
-        final boolean clientSuccess = true;
         final User user = UserUtils.getUser();
         final String unitId1 = UUID.randomUUID().toString();
         final String unitId2 = UUID.randomUUID().toString();
@@ -88,79 +146,90 @@ public class MessagingServiceManagerTest {
         final List<String> filtersList = Arrays.asList(filter1, filter2);
         final String message = "Coucou le device";
         final boolean retained = true;
-        final long timeout = 1000L;
 
-        doNothing().when(mqttBrokerClient).sendMessage(user.getApiKey(), unitId1, message, retained);
-        doNothing().when(mqttBrokerClient).sendMessage(user.getApiKey(), unitId2, message, retained);
-        doNothing().when(messagingServiceManager).sendMessageToDevicesInFilter(user, filter1, message, retained);
-        doNothing().when(messagingServiceManager).sendMessageToDevicesInFilter(user, filter2, message, retained);
+        doReturn(CompletableFuture.completedFuture(null)).when(messagingServiceManager).sendMessageToDevicesInFilters(any(BroadcastJob.class), eq(user), any(TargetSet.class), eq(filtersList), eq(MessagePayload.of(user.getApiKey(), message, retained, 1)));
 
         //When
-        final Future<Boolean> asyncResult = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained);
+        final BroadcastJob job = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained, 1);
 
         //Then
-        verify(mqttBrokerClient).sendMessage(user.getApiKey(), unitId1, message, retained);
-        verify(mqttBrokerClient).sendMessage(user.getApiKey(), unitId1, message, retained);
-        verify(messagingServiceManager).sendMessageToDevicesInFilter(user, filter1, message, retained);
-        verify(messagingServiceManager).sendMessageToDevicesInFilter(user, filter1, message, retained);
-        final Boolean result = asyncResult.get(timeout, TimeUnit.MILLISECONDS);
-        assertThat(result).isEqualTo(clientSuccess);
+        verify(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), unitId1);
+        verify(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), unitId2);
+        verify(messagingServiceManager).sendMessageToDevicesInFilters(eq(job), eq(user), any(TargetSet.class), eq(filtersList), eq(MessagePayload.of(user.getApiKey(), message, retained, 1)));
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
+        assertThat(job.getTargeted()).isEqualTo(2);
+        assertThat(job.getPublished()).isEqualTo(2);
+        assertThat(job.getFailed()).isEqualTo(0);
+        assertThat(job.getRemaining()).isEqualTo(0);
     }
 
     @Test
-    public void sendMessage_whenSendMessageHasFailed_shouldReturnAsyncResultWithFalse() throws InterruptedException, ExecutionException, TimeoutException {
+    public void sendMessage_whenSendMessageHasFailed_shouldFailJob() {
         //Given
-        final boolean clientFail = false;
         final User user = UserUtils.getUser();
         final String unitId1 = UUID.randomUUID().toString();
         final String unitId2 = UUID.randomUUID().toString();
         final String filter1 = UUID.randomUUID().toString();
-        final String filter2 = UUID.randomUUID().toString();
         final List<String> unitIdList = Arrays.asList(unitId1, unitId2);
-        final List<String> filtersList = Arrays.asList(filter1, filter2);
+        final List<String> filtersList = Arrays.asList(filter1);
         final String message = "Coucou le device";
         final boolean retained = true;
-        final long timeout = 1000L;
-        doThrow(RabbitMQClientException.class).when(mqttBrokerClient).sendMessage(eq(user.getApiKey()), anyString(), eq(message), eq(retained));
+        doThrow(RabbitMQClientException.class).when(mqttBrokerClient).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), message, retained, 1)), anyString());
 
         //When
-        final Future<Boolean> asyncResult = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained);
+        final BroadcastJob job = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained, 1);
 
         //Then
-        verify(mqttBrokerClient).sendMessage(user.getApiKey(), unitId1, message, retained);
-        final Boolean result = asyncResult.get(timeout, TimeUnit.MILLISECONDS);
-        assertThat(result).isEqualTo(clientFail);
+        verify(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), unitId1);
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.FAILED);
+        assertThat(job.isFinished()).isTrue();
     }
 
     @Test
-    public void sendMessage_whenSendMessageToFiltersHasFailed_shouldReturnAsyncResultWithFalse() throws InterruptedException, ExecutionException, TimeoutException {
+    public void sendMessage_whenSendMessageToFiltersHasFailed_shouldFailJob() {
         //Given
-        final boolean clientFail = false;
         final User user = UserUtils.getUser();
         final String unitId1 = UUID.randomUUID().toString();
-        final String unitId2 = UUID.randomUUID().toString();
         final String filter1 = UUID.randomUUID().toString();
-        final String filter2 = UUID.randomUUID().toString();
-        final List<String> unitIdList = Arrays.asList(unitId1, unitId2);
-        final List<String> filtersList = Arrays.asList(filter1, filter2);
+        final List<String> unitIdList = Arrays.asList(unitId1);
+        final List<String> filtersList = Arrays.asList(filter1);
         final String message = "Coucou le device";
         final boolean retained = true;
-        final long timeout = 1000L;
-        doThrow(RabbitMQClientException.class).when(messagingServiceManager).sendMessageToDevicesInFilter(eq(user), anyString(), eq(message), eq(retained));
+        doThrow(RabbitMQClientException.class).when(messagingServiceManager).sendMessageToDevicesInFilters(any(BroadcastJob.class), eq(user), any(TargetSet.class), eq(filtersList), eq(MessagePayload.of(user.getApiKey(), message, retained, 1)));
+
+        //When
+        final BroadcastJob job = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained, 1);
+
+        //Then
+        verify(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), unitId1);
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.FAILED);
+    }
+
+    @Test
+    public void sendMessage_whenSomePublicationsAreNotAcknowledged_shouldCountThemAsFailed() {
+        //Given
+        final User user = UserUtils.getUser();
+        final String unitId1 = UUID.randomUUID().toString();
+        final String unitId2 = UUID.randomUUID().toString();
+        final List<String> unitIdList = Arrays.asList(unitId1, unitId2);
+        final String message = "Coucou le device";
+        final boolean retained = false;
+        final CompletableFuture<Void> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new RabbitMQClientException("nack"));
+        doReturn(failure).when(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), unitId2);
 
         //When
-        final Future<Boolean> asyncResult = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained);
+        final BroadcastJob job = messagingServiceManager.sendMessage(user, unitIdList, new ArrayList<>(), message, retained, 1);
 
         //Then
-        verify(mqttBrokerClient).sendMessage(user.getApiKey(), unitId1, message, retained);
-        final Boolean result = asyncResult.get(timeout, TimeUnit.MILLISECONDS);
-        assertThat(result).isEqualTo(clientFail);
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
+        assertThat(job.getPublished()).isEqualTo(1);
+        assertThat(job.getFailed()).isEqualTo(1);
     }
 
     @Test
-    public void sendMessage_whenUnitIdButNoFiltersAndSendMessageHasBeenSuccessful_shouldReturnAsyncResultWithTrue() throws InterruptedException, ExecutionException, TimeoutException {
+    public void sendMessage_whenUnitIdButNoFiltersAndSendMessageHasBeenSuccessful_shouldNotSendToFilters() {
         //Given
-        final boolean clientSuccess = true;
         final User user = UserUtils.getUser();
         final String unitId1 = UUID.randomUUID().toString();
         final String unitId2 = UUID.randomUUID().toString();
@@ -168,26 +237,20 @@ public class MessagingServiceManagerTest {
         final List<String> filtersList = new ArrayList<>();
         final String message = "Coucou le device";
         final boolean retained = true;
-        final long timeout = 1000L;
-
-        doNothing().when(mqttBrokerClient).sendMessage(user.getApiKey(), unitId1, message, retained);
-        doNothing().when(mqttBrokerClient).sendMessage(user.getApiKey(), unitId2, message, retained);
 
         //When
-        final Future<Boolean> asyncResult = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained);
+        final BroadcastJob job = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained, 1);
 
         //Then
-        verify(mqttBrokerClient).sendMessage(user.getApiKey(), unitId1, message, retained);
-        verify(mqttBrokerClient).sendMessage(user.getApiKey(), unitId2, message, retained);
-        verify(messagingServiceManager, never()).sendMessageToDevicesInFilter(eq(user), anyString(), eq(message), eq(retained));
-        final Boolean result = asyncResult.get(timeout, TimeUnit.MILLISECONDS);
-        assertThat(result).isEqualTo(clientSuccess);
+        verify(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), unitId1);
+        verify(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), unitId2);
+        verify(messagingServiceManager, never()).sendMessageToDevicesInFilters(any(BroadcastJob.class), eq(user), any(TargetSet.class), anyListOf(String.class), eq(MessagePayload.of(user.getApiKey(), message, retained, 1)));
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
     }
 
     @Test
-    public void sendMessage_whenFiltersButNoUnitIdAndSendMessageHasBeenSuccessful_shouldReturnAsyncResultWithTrue() throws InterruptedException, ExecutionException, TimeoutException {
+    public void sendMessage_whenFiltersButNoUnitIdAndSendMessageHasBeenSuccessful_shouldNotSendToUnitIds() {
         //Given
-        final boolean clientSuccess = true;
         final User user = UserUtils.getUser();
         final String filter1 = UUID.randomUUID().toString();
         final String filter2 = UUID.randomUUID().toString();
@@ -195,136 +258,752 @@ public class MessagingServiceManagerTest {
         final List<String> unitIdList = new ArrayList<>();
         final String message = "Coucou le device";
         final boolean retained = true;
-        final long timeout = 1000L;
 
-        doNothing().when(messagingServiceManager).sendMessageToDevicesInFilter(user, filter1, message, retained);
-        doNothing().when(messagingServiceManager).sendMessageToDevicesInFilter(user, filter2, message, retained);
+        doReturn(CompletableFuture.completedFuture(null)).when(messagingServiceManager).sendMessageToDevicesInFilters(any(BroadcastJob.class), eq(user), any(TargetSet.class), eq(filtersList), eq(MessagePayload.of(user.getApiKey(), message, retained, 1)));
 
         //When
-        final Future<Boolean> asyncResult = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained);
+        final BroadcastJob job = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained, 1);
 
         //Then
-        verify(messagingServiceManager).sendMessageToDevicesInFilter(user, filter1, message, retained);
-        verify(messagingServiceManager).sendMessageToDevicesInFilter(user, filter2, message, retained);
-        verify(mqttBrokerClient, never()).sendMessage(eq(user.getApiKey()), anyString(), eq(message), eq(retained));
-        final Boolean result = asyncResult.get(timeout, TimeUnit.MILLISECONDS);
-        assertThat(result).isEqualTo(clientSuccess);
+        verify(messagingServiceManager).sendMessageToDevicesInFilters(eq(job), eq(user), any(TargetSet.class), eq(filtersList), eq(MessagePayload.of(user.getApiKey(), message, retained, 1)));
+        verify(mqttBrokerClient, never()).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), message, retained, 1)), anyString());
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
     }
 
     @Test
-    public void sendMessageToAll_whenSendMessageHasBeenSuccessful_shouldReturnAsyncResultWithTrue() throws InterruptedException, ExecutionException, TimeoutException {
+    public void sendMessageToAll_whenSendMessageHasBeenSuccessful_shouldCompleteJob() {
         //Given
-        final boolean clientSuccess = true;
         final User user = UserUtils.getUser();
         final List<String> filtersList = new ArrayList<>();
         final List<String> unitIdList = new ArrayList<>();
         final String message = "Coucou le device";
         final boolean retained = true;
-        final long timeout = 1000L;
-        doNothing().when(messagingServiceManager).sendMessageToAllDevices(user, message, retained);
+        doReturn(CompletableFuture.completedFuture(null)).when(messagingServiceManager).sendMessageToAllDevices(any(BroadcastJob.class), eq(user), eq(MessagePayload.of(user.getApiKey(), message, retained, 1)));
 
         //When
-        final Future<Boolean> asyncResult = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained);
+        final BroadcastJob job = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained, 1);
 
         //Then
-        verify(messagingServiceManager).sendMessageToAllDevices(user, message, retained);
-        final Boolean result = asyncResult.get(timeout, TimeUnit.MILLISECONDS);
-        assertThat(result).isEqualTo(clientSuccess);
+        verify(messagingServiceManager).sendMessageToAllDevices(job, user, MessagePayload.of(user.getApiKey(), message, retained, 1));
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
     }
 
     @Test
-    public void sendMessageToAll_whenSendMessageHasFailed_shouldReturnAsyncResultWithFalse() throws InterruptedException, ExecutionException, TimeoutException {
+    public void sendMessageToAll_whenSendMessageHasFailed_shouldFailJob() {
         //Given
-        final boolean clientFail = false;
         final User user = UserUtils.getUser();
         final List<String> filtersList = new ArrayList<>();
         final List<String> unitIdList = new ArrayList<>();
         final String message = "Coucou le device";
         final boolean retained = true;
-        final long timeout = 1000L;
-        doThrow(RabbitMQClientException.class).when(messagingServiceManager).sendMessageToAllDevices(user, message, retained);
+        doThrow(RabbitMQClientException.class).when(messagingServiceManager).sendMessageToAllDevices(any(BroadcastJob.class), eq(user), eq(MessagePayload.of(user.getApiKey(), message, retained, 1)));
 
         //When
-        final Future<Boolean> asyncResult = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained);
+        final BroadcastJob job = messagingServiceManager.sendMessage(user, unitIdList, filtersList, message, retained, 1);
 
         //Then
-        verify(messagingServiceManager).sendMessageToAllDevices(user, message, retained);
-        final Boolean result = asyncResult.get(timeout, TimeUnit.MILLISECONDS);
-        assertThat(result).isEqualTo(clientFail);
+        verify(messagingServiceManager).sendMessageToAllDevices(job, user, MessagePayload.of(user.getApiKey(), message, retained, 1));
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.FAILED);
+    }
+
+    @Test
+    public void sendMessage_whenExecutorRejectsTheBroadcast_shouldPropagateAndForgetTheJob() {
+        //Given
+        final User user = UserUtils.getUser();
+        broadcastExecutor = task -> {
+            throw new TaskRejectedException("Executor saturated");
+        };
+        final MessagingServiceManager saturatedManager = buildManager();
+
+        //When / Then
+        assertThatExceptionOfType(TaskRejectedException.class)
+                .isThrownBy(() -> saturatedManager.sendMessage(user, new ArrayList<>(), new ArrayList<>(), "message", false, 1));
+        assertThat(broadcastJobRegistry.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void sendMessage_whenQosIsInvalid_shouldThrowAndNotRegisterJob() {
+        //Given
+        final User user = UserUtils.getUser();
+
+        //When / Then
+        assertThatExceptionOfType(InvalidQosException.class)
+                .isThrownBy(() -> messagingServiceManager.sendMessage(user, new ArrayList<>(), new ArrayList<>(), "message", false, 3));
+        assertThat(broadcastJobRegistry.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void sendMessage_whenRetainedIsNotSupported_shouldThrowAndNotRegisterJob() {
+        //Given
+        final User user = UserUtils.getUser();
+        doReturn(false).when(mqttBrokerClient).supportsRetained();
+
+        //When / Then
+        assertThatExceptionOfType(RetainedMessageNotSupportedException.class)
+                .isThrownBy(() -> messagingServiceManager.sendMessage(user, new ArrayList<>(), new ArrayList<>(), "message", true, 1));
+        assertThat(broadcastJobRegistry.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void getJob_whenJobWasEvicted_shouldThrowNotFound() throws Exception {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJobRegistry shortRetentionRegistry = new BroadcastJobRegistry(1L, 100);
+        broadcastJobRegistry = shortRetentionRegistry;
+        final MessagingServiceManager manager = buildManager();
+        final BroadcastJob evicted = manager.sendMessage(user, Collections.singletonList(UUID.randomUUID().toString()), new ArrayList<>(), "message", false, 1);
+        Thread.sleep(10);
+        manager.sendMessage(user, Collections.singletonList(UUID.randomUUID().toString()), new ArrayList<>(), "message", false, 1);
+
+        //When / Then
+        assertThatExceptionOfType(BroadcastJobNotFoundException.class)
+                .isThrownBy(() -> manager.getJob(user, evicted.getId()));
+    }
+
+    @Test
+    public void getJob_whenJobBelongsToUser_shouldReturnJob() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob expected = broadcastJobRegistry.register(user.getId());
+
+        //When
+        final BroadcastJob result = messagingServiceManager.getJob(user, expected.getId());
+
+        //Then
+        assertThat(result).isSameAs(expected);
+    }
+
+    @Test
+    public void getJob_whenJobBelongsToAnotherUser_shouldThrowException() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = broadcastJobRegistry.register(UUID.randomUUID().toString());
+
+        //When / Then
+        assertThatExceptionOfType(BroadcastJobNotFoundException.class)
+                .isThrownBy(() -> messagingServiceManager.getJob(user, job.getId()));
     }
 
     @Test
     public void sendMessageToAllDevices_whenOnlyOnePage_shouldCallClient() {
         //Given
-        final Pageable pageable = new PageRequest(0, 10);
         final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
         final String message = "salut";
         final boolean retained = true;
-        final List<Device> deviceList = new ArrayList<>();
-        for (int i = 0; i < 8; i++) {
-            deviceList.add(DeviceUtils.getDevice());
-        }
-        final PagedResources<Device> pagedResources = PagedResourcesUtils.buildPagedResources(pageable, deviceList);
-        doReturn(pagedResources).when(deviceServiceClient).getDevices(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
+        final List<Device> deviceList = buildDevices(8);
+        doAnswer(streamPage(deviceList, deviceList.size())).when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
 
         //When
-        messagingServiceManager.sendMessageToAllDevices(user, message, retained);
+        messagingServiceManager.sendMessageToAllDevices(job, user, MessagePayload.of(user.getApiKey(), message, retained, 1)).join();
 
         //Then
-        verify(deviceServiceClient, new Times(1)).getDevices(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
-        verify(mqttBrokerClient, new Times(8)).sendMessage(eq(user.getApiKey()), anyString(), eq(message), eq(retained));
+        verify(deviceServiceClient, new Times(1)).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        verify(mqttBrokerClient, new Times(8)).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), message, retained, 1)), anyString());
+        assertThat(job.getTargeted()).isEqualTo(8);
+        assertThat(job.getPublished()).isEqualTo(8);
     }
 
     @Test
-    public void sendMessageToAllDevices_whenMultiplePages_shouldCallClient() {
+    public void sendMessageToAllDevices_whenMultiplePages_shouldWalkPagesAfterTheLastSeenDevice() {
         //Given
-        final Pageable pageable = new PageRequest(0, 10);
         final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
         final String message = "salut";
         final boolean retained = true;
+        final List<Device> firstDevices = buildDevices(PAGE_SIZE);
+        final List<Device> secondDevices = buildDevices(15);
+        final Device lastOfFirstPage = firstDevices.get(firstDevices.size() - 1);
+        final ArgumentCaptor<BarracksQuery> queries = ArgumentCaptor.forClass(BarracksQuery.class);
+        doAnswer(streamPage(firstDevices, firstDevices.size() + secondDevices.size()))
+                .doAnswer(streamPage(secondDevices, secondDevices.size()))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
 
-        final List<Device> deviceList = new ArrayList<>();
-        for (int i = 0; i < 15; i++) {
-            deviceList.add(DeviceUtils.getDevice());
-        }
-        final PagedResources<Device> pagedResources = PagedResourcesUtils.buildPagedResources(pageable, deviceList);
-        doReturn(pagedResources).when(deviceServiceClient).getDevices(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
+        //When
+        messagingServiceManager.sendMessageToAllDevices(job, user, MessagePayload.of(user.getApiKey(), message, retained, 1)).join();
+
+        //Then
+        verify(deviceServiceClient, new Times(2)).getDeviceIds(eq(user.getId()), any(Pageable.class), queries.capture(), any());
+        verify(mqttBrokerClient, new Times(PAGE_SIZE + 15)).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), message, retained, 1)), anyString());
+        assertThat(queries.getAllValues().get(0).toJsonString()).doesNotContain(lastOfFirstPage.getUnitId());
+        assertThat(queries.getAllValues().get(1).toJsonString()).contains("\"gt\"", lastOfFirstPage.getUnitId());
+        assertThat(job.getTargeted()).isEqualTo(PAGE_SIZE + 15);
+    }
+
+    @Test
+    public void sendMessageToAllDevices_whenPrefetching_shouldPublishEveryPage() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        final String message = "salut";
+        final boolean retained = true;
+        broadcastProperties.getPrefetch().setDepth(1);
+        final MessagingServiceManager prefetchingManager = buildManager();
+        final List<Device> firstDevices = buildDevices(PAGE_SIZE);
+        final List<Device> secondDevices = buildDevices(PAGE_SIZE);
+        final List<Device> thirdDevices = buildDevices(15);
+        doAnswer(streamPage(firstDevices, 2 * PAGE_SIZE + 15))
+                .doAnswer(streamPage(secondDevices, PAGE_SIZE + 15))
+                .doAnswer(streamPage(thirdDevices, 15))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
 
         //When
-        messagingServiceManager.sendMessageToAllDevices(user, message, retained);
+        prefetchingManager.sendMessageToAllDevices(job, user, MessagePayload.of(user.getApiKey(), message, retained, 1)).join();
 
         //Then
-        verify(deviceServiceClient, new Times(2)).getDevices(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
-        verify(mqttBrokerClient, new Times(30)).sendMessage(eq(user.getApiKey()), anyString(), eq(message), eq(retained));
+        verify(deviceServiceClient, new Times(3)).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        verify(mqttBrokerClient, new Times(2 * PAGE_SIZE + 15)).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), message, retained, 1)), anyString());
+        assertThat(job.getTargeted()).isEqualTo(2 * PAGE_SIZE + 15);
+        assertThat(job.getPublished()).isEqualTo(2 * PAGE_SIZE + 15);
     }
 
     @Test
-    public void sendMessageToFilter_whenFilterExists_shouldCallClient() {
+    public void sendMessageToAllDevices_whenFetchExecutorRejects_shouldFetchInline() {
         //Given
-        final Pageable pageable = new PageRequest(0, 10);
         final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
         final String message = "salut";
         final boolean retained = true;
-        final String filterName = UUID.randomUUID().toString();
+        pageFetchExecutor = new ConcurrentTaskExecutor(task -> {
+            throw new RejectedExecutionException("Executor saturated");
+        });
+        broadcastProperties.getPrefetch().setDepth(2);
+        final MessagingServiceManager prefetchingManager = buildManager();
+        final List<Device> devices = buildDevices(8);
+        doAnswer(streamPage(devices, devices.size()))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        //When
+        prefetchingManager.sendMessageToAllDevices(job, user, MessagePayload.of(user.getApiKey(), message, retained, 1)).join();
 
-        final List<Device> deviceList = new ArrayList<>();
-        for (int i = 0; i < 15; i++) {
-            deviceList.add(DeviceUtils.getDevice());
+        //Then
+        verify(mqttBrokerClient, new Times(8)).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), message, retained, 1)), anyString());
+        assertThat(job.getPublished()).isEqualTo(8);
+    }
+
+    @Test
+    public void sendMessageToAllDevices_whenParallelEnumeration_shouldFetchRemainingPagesByOffset() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        final String message = "salut";
+        final boolean retained = true;
+        broadcastProperties.getEnumeration().setMode(MessagingServiceManager.PARALLEL_ENUMERATION);
+        broadcastProperties.getEnumeration().setParallelism(2);
+        final MessagingServiceManager parallelManager = buildManager();
+        final long total = 3 * PAGE_SIZE + 15;
+        final ArgumentCaptor<Pageable> pageables = ArgumentCaptor.forClass(Pageable.class);
+        doAnswer(streamPage(buildDevices(PAGE_SIZE), total))
+                .doAnswer(streamPage(buildDevices(PAGE_SIZE), total))
+                .doAnswer(streamPage(buildDevices(PAGE_SIZE), total))
+                .doAnswer(streamPage(buildDevices(15), total))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        //When
+        parallelManager.sendMessageToAllDevices(job, user, MessagePayload.of(user.getApiKey(), message, retained, 1)).join();
+
+        //Then
+        verify(deviceServiceClient, new Times(4)).getDeviceIds(eq(user.getId()), pageables.capture(), any(BarracksQuery.class), any());
+        assertThat(pageables.getAllValues()).extracting(Pageable::getPageNumber).containsOnly(0, 1, 2, 3);
+        verify(mqttBrokerClient, new Times((int) total)).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), message, retained, 1)), anyString());
+        assertThat(job.getTargeted()).isEqualTo(total);
+        assertThat(job.getPublished()).isEqualTo(total);
+    }
+
+    @Test
+    public void sendMessageToAllDevices_whenParallelEnumeration_shouldReportPageLatencies() {
+        //Given
+        final User user = UserUtils.getUser();
+        final PageSizePolicy recordingPolicy = spy(new PageSizePolicy(PAGE_SIZE, true, PAGE_SIZE, PAGE_SIZE * 4, 500L));
+        pageSizePolicy = recordingPolicy;
+        broadcastProperties.getEnumeration().setMode(MessagingServiceManager.PARALLEL_ENUMERATION);
+        broadcastProperties.getEnumeration().setParallelism(2);
+        final MessagingServiceManager parallelManager = buildManager();
+        final long total = PAGE_SIZE + 15;
+        doAnswer(streamPage(buildDevices(PAGE_SIZE), total))
+                .doAnswer(streamPage(buildDevices(15), total))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        //When
+        parallelManager.sendMessageToAllDevices(new BroadcastJob(user.getId()), user, MessagePayload.of(user.getApiKey(), "salut", false, 1)).join();
+
+        //Then
+        verify(recordingPolicy).record(eq(PAGE_SIZE), eq(PAGE_SIZE), anyLong());
+        verify(recordingPolicy).record(eq(PAGE_SIZE), eq(15), anyLong());
+    }
+
+    @Test
+    public void sendMessageToAllDevices_whenParallelFetchFails_shouldPropagate() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        broadcastProperties.getEnumeration().setMode(MessagingServiceManager.PARALLEL_ENUMERATION);
+        broadcastProperties.getEnumeration().setParallelism(2);
+        final MessagingServiceManager parallelManager = buildManager();
+        doAnswer(streamPage(buildDevices(PAGE_SIZE), 2 * PAGE_SIZE))
+                .doThrow(new IllegalStateException("Device service unavailable"))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        //When / Then
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> parallelManager.sendMessageToAllDevices(job, user, MessagePayload.of(user.getApiKey(), "salut", false, 1)));
+    }
+
+    @Test
+    public void sendMessage_whenAsyncEnumeration_shouldWalkPagesWithoutBlocking() {
+        //Given
+        final User user = UserUtils.getUser();
+        final String message = "salut";
+        final boolean retained = false;
+        broadcastProperties.getEnumeration().setMode(MessagingServiceManager.ASYNC_ENUMERATION);
+        final MessagingServiceManager asyncManager = buildManager();
+        final List<Device> firstDevices = buildDevices(PAGE_SIZE);
+        final List<Device> secondDevices = buildDevices(15);
+        doReturn(CompletableFuture.completedFuture(buildPage(firstDevices, firstDevices.size() + secondDevices.size())))
+                .doReturn(CompletableFuture.completedFuture(buildPage(secondDevices, secondDevices.size())))
+                .when(deviceServiceClient).getDevicesAsync(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
+
+        //When
+        final BroadcastJob job = asyncManager.sendMessage(user, new ArrayList<>(), new ArrayList<>(), message, retained, 1);
+
+        //Then
+        verify(deviceServiceClient, new Times(2)).getDevicesAsync(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
+        verify(deviceServiceClient, never()).getDeviceIds(anyString(), any(Pageable.class), any(BarracksQuery.class), any());
+        verify(mqttBrokerClient, new Times(PAGE_SIZE + 15)).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), message, retained, 1)), anyString());
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
+        assertThat(job.getPublished()).isEqualTo(PAGE_SIZE + 15);
+    }
+
+    @Test
+    public void runBroadcast_whenPageIsFetched_shouldHandleItOnTheContinuationExecutor() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        final List<String> handoffs = new ArrayList<>();
+        continuationExecutor = task -> {
+            handoffs.add("page");
+            task.run();
+        };
+        broadcastProperties.getEnumeration().setMode(MessagingServiceManager.ASYNC_ENUMERATION);
+        final MessagingServiceManager asyncManager = buildManager();
+        final List<Device> devices = buildDevices(15);
+        final CompletableFuture<PagedResources<Device>> page = new CompletableFuture<>();
+        doReturn(page).when(deviceServiceClient).getDevicesAsync(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
+        final CompletableFuture<Void> result = asyncManager.runBroadcast(job, user, new ArrayList<>(), new ArrayList<>(), MessagePayload.of(user.getApiKey(), "salut", false, 1));
+
+        //When
+        page.complete(buildPage(devices, devices.size()));
+
+        //Then
+        assertThat(result).isCompleted();
+        assertThat(handoffs).hasSize(1);
+        assertThat(job.getPublished()).isEqualTo(15);
+    }
+
+    @Test
+    public void runBroadcast_whenBroadcastExecutorIsSaturated_shouldCompleteRunningJob() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        broadcastExecutor = task -> {
+            throw new TaskRejectedException("Executor saturated");
+        };
+        broadcastProperties.getEnumeration().setMode(MessagingServiceManager.ASYNC_ENUMERATION);
+        final MessagingServiceManager asyncManager = buildManager();
+        final List<Device> firstDevices = buildDevices(PAGE_SIZE);
+        final List<Device> secondDevices = buildDevices(15);
+        final CompletableFuture<PagedResources<Device>> firstPage = new CompletableFuture<>();
+        final CompletableFuture<PagedResources<Device>> secondPage = new CompletableFuture<>();
+        doReturn(firstPage)
+                .doReturn(secondPage)
+                .when(deviceServiceClient).getDevicesAsync(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
+        final CompletableFuture<Void> result = asyncManager.runBroadcast(job, user, new ArrayList<>(), new ArrayList<>(), MessagePayload.of(user.getApiKey(), "salut", false, 1));
+        assertThatExceptionOfType(TaskRejectedException.class)
+                .isThrownBy(() -> asyncManager.sendMessage(user, new ArrayList<>(), new ArrayList<>(), "other", false, 1));
+
+        //When
+        firstPage.complete(buildPage(firstDevices, firstDevices.size() + secondDevices.size()));
+        secondPage.complete(buildPage(secondDevices, secondDevices.size()));
+
+        //Then
+        assertThat(result).isCompleted();
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
+        assertThat(job.getPublished()).isEqualTo(PAGE_SIZE + 15);
+    }
+
+    @Test
+    public void runBroadcast_whenPageFetchFails_shouldFailJob() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        broadcastProperties.getEnumeration().setMode(MessagingServiceManager.ASYNC_ENUMERATION);
+        final MessagingServiceManager asyncManager = buildManager();
+        final CompletableFuture<PagedResources<Device>> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new IllegalStateException("Device service unavailable"));
+        doReturn(failure).when(deviceServiceClient).getDevicesAsync(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
+
+        //When
+        final CompletableFuture<Void> result = asyncManager.runBroadcast(job, user, new ArrayList<>(), new ArrayList<>(), MessagePayload.of(user.getApiKey(), "salut", false, 1));
+
+        //Then
+        assertThat(result).isCompletedExceptionally();
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.FAILED);
+    }
+
+    @Test
+    public void sendMessage_whenDeviceIsListedAndMatchesFilters_shouldPublishOnce() {
+        //Given
+        final User user = UserUtils.getUser();
+        final String message = "salut";
+        final boolean retained = false;
+        final List<Device> devices = buildDevices(10);
+        final String filter1 = UUID.randomUUID().toString();
+        final String filter2 = UUID.randomUUID().toString();
+        doReturn(FilterUtils.getFilter()).when(deviceServiceClient).getFilterByUserIdAndName(eq(user.getId()), anyString());
+        doAnswer(streamPage(devices, devices.size()))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        //When
+        final BroadcastJob job = messagingServiceManager.sendMessage(
+                user,
+                Arrays.asList(devices.get(0).getUnitId(), devices.get(1).getUnitId()),
+                Arrays.asList(filter1, filter2),
+                message,
+                retained,
+                1
+        );
+
+        //Then
+        for (Device device : devices) {
+            verify(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), device.getUnitId());
+        }
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
+        assertThat(job.getTargeted()).isEqualTo(12);
+        assertThat(job.getPublished()).isEqualTo(10);
+        assertThat(job.getDuplicates()).isEqualTo(2);
+        assertThat(job.getRemaining()).isEqualTo(0);
+    }
+
+    @Test
+    public void sendMessageToAllDevices_whenDirectoryEnabled_shouldPublishFromDirectory() {
+        //Given
+        final User user = UserUtils.getUser();
+        final String message = "salut";
+        final boolean retained = true;
+        deviceDirectory = new DeviceDirectory(deviceServiceClient, pageSizePolicy, true, 3600000L, 1000000L);
+        final MessagingServiceManager directoryManager = buildManager();
+        final List<Device> devices = buildDevices(PAGE_SIZE + 15);
+        doAnswer(streamPage(devices, devices.size()))
+                .doAnswer(streamPage(new ArrayList<>(), 0))
+                .when(deviceServiceClient).getDeviceEntries(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        //When
+        final BroadcastJob first = new BroadcastJob(user.getId());
+        directoryManager.sendMessageToAllDevices(first, user, MessagePayload.of(user.getApiKey(), message, retained, 1)).join();
+        final BroadcastJob second = new BroadcastJob(user.getId());
+        directoryManager.sendMessageToAllDevices(second, user, MessagePayload.of(user.getApiKey(), message, retained, 1)).join();
+
+        //Then
+        verify(deviceServiceClient, new Times(3)).getDeviceEntries(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        verify(deviceServiceClient, never()).getDeviceIds(anyString(), any(Pageable.class), any(BarracksQuery.class), any());
+        for (Device device : devices) {
+            verify(mqttBrokerClient, new Times(2)).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), device.getUnitId());
+        }
+        assertThat(first.getTargeted()).isEqualTo(PAGE_SIZE + 15);
+        assertThat(second.getPublished()).isEqualTo(PAGE_SIZE + 15);
+    }
+
+    @Test
+    public void sendMessageToAllDevices_whenDirectoryChunkExceedsInFlightWindow_shouldNotPublishFromAckThread() throws Exception {
+        //Given
+        final User user = UserUtils.getUser();
+        final MessagePayload payload = MessagePayload.of(user.getApiKey(), "salut", false, 1);
+        deviceDirectory = new DeviceDirectory(deviceServiceClient, pageSizePolicy, true, 3600000L, 1000000L);
+        continuationExecutor = new SimpleAsyncTaskExecutor();
+        final MessagingServiceManager directoryManager = buildManager();
+        final List<Device> devices = buildDevices(PAGE_SIZE * 2 + 15);
+        doAnswer(streamPage(devices, devices.size()))
+                .when(deviceServiceClient).getDeviceEntries(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        // A single connection with a window of 4 acked from one thread, which releases the permit after completing
+        final Semaphore inFlight = new Semaphore(4);
+        final ExecutorService ackThread = Executors.newSingleThreadExecutor();
+        doAnswer(invocation -> {
+            final CompletableFuture<Void> result = new CompletableFuture<>();
+            if (!inFlight.tryAcquire(5, TimeUnit.SECONDS)) {
+                result.completeExceptionally(new IllegalStateException("In-flight window never released"));
+                return result;
+            }
+            ackThread.execute(() -> {
+                result.complete(null);
+                inFlight.release();
+            });
+            return result;
+        }).when(mqttBrokerClient).sendMessageAsync(any(MessagePayload.class), anyString());
+        final BroadcastJob job = new BroadcastJob(user.getId());
+
+        try {
+            //When
+            directoryManager.sendMessageToAllDevices(job, user, payload).join();
+
+            //Then
+            assertThat(job.getPublished()).isEqualTo(devices.size());
+            assertThat(job.getFailed()).isEqualTo(0);
+        } finally {
+            ackThread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sendMessageToAllDevices_whenTenantTopicEnabled_shouldPublishOnceWithoutEnumerating() {
+        //Given
+        final User user = UserUtils.getUser();
+        final MessagePayload payload = MessagePayload.of(user.getApiKey(), "salut", false, 1);
+        tenantBroadcastTopics = new TenantBroadcastTopics("broadcast", new String[]{"other", user.getId()});
+        final MessagingServiceManager tenantTopicManager = buildManager();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+
+        //When
+        tenantTopicManager.sendMessageToAllDevices(job, user, payload).join();
+
+        //Then
+        verify(mqttBrokerClient).sendMessageAsync(payload, "broadcast");
+        verify(mqttBrokerClient, new Times(1)).sendMessageAsync(any(MessagePayload.class), anyString());
+        verify(deviceServiceClient, never()).getDeviceIds(anyString(), any(Pageable.class), any(BarracksQuery.class), any());
+        assertThat(job.getTargeted()).isEqualTo(1);
+        assertThat(job.getPublished()).isEqualTo(1);
+    }
+
+    @Test
+    public void runBroadcast_whenGroupMembersAlreadySubscribed_shouldPublishOnceOnGroupTopic() {
+        //Given
+        final User user = UserUtils.getUser();
+        final MessagePayload payload = MessagePayload.of(user.getApiKey(), "salut", false, 1);
+        final List<Device> members = buildDevices(3);
+        final String filterName = "hot";
+        final FilterGroupTopics groupTopics = new FilterGroupTopics(
+                deviceServiceClient,
+                mqttBrokerClient,
+                deviceDirectory,
+                pageSizePolicy,
+                new String[]{user.getId() + ":" + filterName},
+                60000L
+        );
+        filterGroupTopics = groupTopics;
+        final MessagingServiceManager groupManager = buildManager();
+        doReturn(FilterUtils.getFilter()).when(deviceServiceClient).getFilterByUserIdAndName(user.getId(), filterName);
+        doAnswer(streamPage(members, members.size()))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        final BroadcastJob job = new BroadcastJob(user.getId());
+
+        //When
+        try {
+            groupTopics.getMembership(user, filterName);
+            groupManager.runBroadcast(job, user, Collections.singletonList(members.get(0).getUnitId()), Collections.singletonList(filterName), payload).join();
+        } finally {
+            groupTopics.close();
         }
 
-        final PagedResources<Device> pagedResources = PagedResourcesUtils.buildPagedResources(pageable, deviceList);
+        //Then
+        verify(mqttBrokerClient).sendMessageAsync(payload, "filters/" + filterName);
+        verify(mqttBrokerClient, never()).sendMessageAsync(payload, members.get(0).getUnitId());
+        verify(deviceServiceClient, new Times(1)).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
+        assertThat(job.getPublished()).isEqualTo(1);
+        assertThat(job.getDuplicates()).isEqualTo(1);
+    }
+
+    @Test
+    public void runBroadcast_whenFirstBroadcastToGroup_shouldAlsoPublishToJoiningDevicesDirectly() {
+        //Given
+        final User user = UserUtils.getUser();
+        final MessagePayload payload = MessagePayload.of(user.getApiKey(), "salut", false, 1);
+        final List<Device> members = buildDevices(3);
+        final String filterName = "hot";
+        final FilterGroupTopics groupTopics = new FilterGroupTopics(
+                deviceServiceClient,
+                mqttBrokerClient,
+                deviceDirectory,
+                pageSizePolicy,
+                new String[]{user.getId() + ":" + filterName},
+                60000L
+        );
+        filterGroupTopics = groupTopics;
+        final MessagingServiceManager groupManager = buildManager();
+        doReturn(FilterUtils.getFilter()).when(deviceServiceClient).getFilterByUserIdAndName(user.getId(), filterName);
+        doAnswer(streamPage(members, members.size()))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        final BroadcastJob job = new BroadcastJob(user.getId());
+
+        //When
+        try {
+            groupManager.runBroadcast(job, user, Collections.singletonList(members.get(0).getUnitId()), Collections.singletonList(filterName), payload).join();
+        } finally {
+            groupTopics.close();
+        }
+
+        //Then
+        verify(mqttBrokerClient).sendMessageAsync(payload, "filters/" + filterName);
+        for (Device member : members) {
+            verify(mqttBrokerClient).sendMessageAsync(payload, member.getUnitId());
+        }
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
+        assertThat(job.getPublished()).isEqualTo(1 + members.size());
+        assertThat(job.getDuplicates()).isEqualTo(1);
+    }
+
+    @Test
+    public void sendMessageToDevicesInFilters_whenDirectoryCanEvaluateFilter_shouldNotEnumerateRemotely() {
+        //Given
+        final User user = UserUtils.getUser();
+        final String message = "salut";
+        final boolean retained = true;
+        final String filterName = "filter";
+        deviceDirectory = new DeviceDirectory(deviceServiceClient, pageSizePolicy, true, 3600000L, 1000000L);
+        final MessagingServiceManager directoryManager = buildManager();
+        final List<Device> devices = buildDevices(8);
+        final JsonNodeFactory jsonNodeFactory = JsonNodeFactory.instance;
+        final Filter filter = Filter.builder()
+                .query(jsonNodeFactory.objectNode().set("in", jsonNodeFactory.objectNode().set(
+                        "unitId",
+                        jsonNodeFactory.arrayNode().add(devices.get(1).getUnitId()).add(devices.get(4).getUnitId())
+                )))
+                .build();
+        doReturn(filter).when(deviceServiceClient).getFilterByUserIdAndName(user.getId(), filterName);
+        doAnswer(streamPage(devices, devices.size()))
+                .when(deviceServiceClient).getDeviceEntries(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        final BroadcastJob job = new BroadcastJob(user.getId());
+
+        //When
+        directoryManager.sendMessageToDevicesInFilters(job, user, null, Collections.singletonList(filterName), MessagePayload.of(user.getApiKey(), message, retained, 1)).join();
+
+        //Then
+        verify(deviceServiceClient, never()).getDeviceIds(anyString(), any(Pageable.class), any(BarracksQuery.class), any());
+        verify(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), devices.get(1).getUnitId());
+        verify(mqttBrokerClient).sendMessageAsync(MessagePayload.of(user.getApiKey(), message, retained, 1), devices.get(4).getUnitId());
+        verify(mqttBrokerClient, new Times(2)).sendMessageAsync(any(MessagePayload.class), anyString());
+        assertThat(job.getTargeted()).isEqualTo(2);
+    }
+
+    @Test
+    public void sendMessageToFilter_whenFilterExists_shouldCallClient() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        final String message = "salut";
+        final boolean retained = true;
+        final String filterName = UUID.randomUUID().toString();
+        final List<Device> firstDevices = buildDevices(PAGE_SIZE);
+        final List<Device> secondDevices = buildDevices(15);
         final Filter filter = FilterUtils.getFilter();
 
         doReturn(filter).when(deviceServiceClient).getFilterByUserIdAndName(user.getId(), filterName);
-        doReturn(pagedResources).when(deviceServiceClient).getDevices(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
+        doAnswer(streamPage(firstDevices, firstDevices.size() + secondDevices.size()))
+                .doAnswer(streamPage(secondDevices, secondDevices.size()))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
 
         //When
-        messagingServiceManager.sendMessageToDevicesInFilter(user, filterName, message, retained);
+        messagingServiceManager.sendMessageToDevicesInFilters(job, user, new TargetSet(DEDUP_THRESHOLD), Collections.singletonList(filterName), MessagePayload.of(user.getApiKey(), message, retained, 1)).join();
 
         //Then
         verify(deviceServiceClient).getFilterByUserIdAndName(user.getId(), filterName);
-        verify(deviceServiceClient, new Times(2)).getDevices(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class));
-        verify(mqttBrokerClient, new Times(30)).sendMessage(eq(user.getApiKey()), anyString(), eq(message), eq(retained));
+        verify(deviceServiceClient, new Times(2)).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        verify(mqttBrokerClient, new Times(PAGE_SIZE + 15)).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), message, retained, 1)), anyString());
+    }
+
+    @Test
+    public void sendMessageToFilters_whenSeveralFilters_shouldEnumerateTheirUnionOnce() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        final List<String> filterNames = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        final List<Device> devices = buildDevices(15);
+        final ArgumentCaptor<BarracksQuery> queries = ArgumentCaptor.forClass(BarracksQuery.class);
+        doReturn(FilterUtils.getFilter()).when(deviceServiceClient).getFilterByUserIdAndName(eq(user.getId()), anyString());
+        doAnswer(streamPage(devices, devices.size()))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        //When
+        messagingServiceManager.sendMessageToDevicesInFilters(job, user, new TargetSet(DEDUP_THRESHOLD), filterNames, MessagePayload.of(user.getApiKey(), "salut", false, 1)).join();
+
+        //Then
+        verify(deviceServiceClient, new Times(2)).getFilterByUserIdAndName(eq(user.getId()), anyString());
+        verify(deviceServiceClient, new Times(1)).getDeviceIds(eq(user.getId()), any(Pageable.class), queries.capture(), any());
+        assertThat(queries.getValue().toJsonString()).contains("\"or\"");
+        verify(mqttBrokerClient, new Times(15)).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), "salut", false, 1)), anyString());
+    }
+
+    @Test
+    public void sendMessageToFilters_whenUnionIsTooLong_shouldEnumerateFiltersSeparately() {
+        //Given
+        final User user = UserUtils.getUser();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        final List<String> filterNames = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        broadcastProperties.getFilterUnion().setMaxQueryLength(1);
+        final MessagingServiceManager separateManager = buildManager();
+        doReturn(FilterUtils.getFilter()).when(deviceServiceClient).getFilterByUserIdAndName(eq(user.getId()), anyString());
+        doAnswer(streamPage(buildDevices(10), 10))
+                .doAnswer(streamPage(buildDevices(5), 5))
+                .when(deviceServiceClient).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+
+        //When
+        separateManager.sendMessageToDevicesInFilters(job, user, new TargetSet(DEDUP_THRESHOLD), filterNames, MessagePayload.of(user.getApiKey(), "salut", false, 1)).join();
+
+        //Then
+        verify(deviceServiceClient, new Times(2)).getDeviceIds(eq(user.getId()), any(Pageable.class), any(BarracksQuery.class), any());
+        verify(mqttBrokerClient, new Times(15)).sendMessageAsync(eq(MessagePayload.of(user.getApiKey(), "salut", false, 1)), anyString());
+        assertThat(job.getTargeted()).isEqualTo(15);
+    }
+
+    // Builds a manager from the collaborators and properties of the test, which tests override before calling it
+    private MessagingServiceManager buildManager() {
+        return new MessagingServiceManager(
+                mqttBrokerClient,
+                deviceServiceClient,
+                broadcastExecutor,
+                continuationExecutor,
+                pageFetchExecutor,
+                broadcastJobRegistry,
+                pageSizePolicy,
+                deviceDirectory,
+                enumerationCoalescer,
+                tenantBroadcastTopics,
+                filterGroupTopics,
+                broadcastProperties
+        );
+    }
+
+    private List<Device> buildDevices(int count) {
+        final List<Device> devices = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            devices.add(DeviceUtils.getDevice());
+        }
+        return devices;
+    }
+
+    private PagedResources<Device> buildPage(List<Device> devices, long totalElements) {
+        return new PagedResources<>(devices, new PagedResources.PageMetadata(PAGE_SIZE, 0, totalElements));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Answer<DeviceIdPage> streamPage(List<Device> devices, long totalElements) {
+        return invocation -> {
+            final Object deviceConsumer = invocation.getArguments()[3];
+            for (Device device : devices) {
+                if (deviceConsumer instanceof BiConsumer) {
+                    ((BiConsumer<String, CharSequence>) deviceConsumer).accept(device.getUnitId(), DateTimeFormatter.ISO_INSTANT.format(device.getFirstSeen()));
+                } else {
+                    ((Consumer<String>) deviceConsumer).accept(device.getUnitId());
+                }
+            }
+            final Device last = devices.isEmpty() ? null : devices.get(devices.size() - 1);
+            return new DeviceIdPage(
+                    devices.size(),
+                    totalElements,
+                    (totalElements + PAGE_SIZE - 1) / PAGE_SIZE,
+                    last == null ? null : last.getUnitId(),
+                    last == null ? null : DateTimeFormatter.ISO_INSTANT.format(last.getFirstSeen())
+            );
+        };
     }
 
 }
@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PageSizePolicyTest {
+
+    @Test
+    public void record_whenNotAdaptive_shouldKeepConfiguredSize() {
+        //Given
+        final PageSizePolicy policy = new PageSizePolicy(100, false, 50, 1000, 500L);
+
+        //When
+        policy.record(100, 100, 10L);
+
+        //Then
+        assertThat(policy.getPageSize()).isEqualTo(100);
+    }
+
+    @Test
+    public void record_whenFullPageIsFast_shouldGrowUpToMaxSize() {
+        //Given
+        final PageSizePolicy policy = new PageSizePolicy(400, true, 50, 1000, 500L);
+
+        //When
+        policy.record(400, 400, 10L);
+        policy.record(800, 800, 10L);
+
+        //Then
+        assertThat(policy.getPageSize()).isEqualTo(1000);
+    }
+
+    @Test
+    public void record_whenPageIsSlow_shouldShrinkDownToMinSize() {
+        //Given
+        final PageSizePolicy policy = new PageSizePolicy(150, true, 50, 1000, 500L);
+
+        //When
+        policy.record(150, 150, 800L);
+        policy.record(75, 75, 800L);
+
+        //Then
+        assertThat(policy.getPageSize()).isEqualTo(50);
+    }
+
+    @Test
+    public void record_whenPageIsPartial_shouldNotGrow() {
+        //Given
+        final PageSizePolicy policy = new PageSizePolicy(100, true, 50, 1000, 500L);
+
+        //When
+        policy.record(100, 12, 10L);
+
+        //Then
+        assertThat(policy.getPageSize()).isEqualTo(100);
+    }
+}
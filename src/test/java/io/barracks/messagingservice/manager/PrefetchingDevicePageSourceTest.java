@@ -0,0 +1,63 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.manager;
+
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class PrefetchingDevicePageSourceTest {
+
+    @Test
+    public void forEachPage_whenHandlerAbortsWithFullBuffer_shouldReleaseTheFetchThread() throws Exception {
+        // Given
+        final ExecutorService fetchThread = Executors.newSingleThreadExecutor();
+        final DevicePageSource endless = handler -> {
+            while (true) {
+                handler.accept(new DevicePage(Collections.singletonList("unit"), 1));
+            }
+        };
+        final PrefetchingDevicePageSource source = new PrefetchingDevicePageSource(endless, new ConcurrentTaskExecutor(fetchThread), 2);
+
+        try {
+            // When
+            assertThatExceptionOfType(IllegalStateException.class).isThrownBy(() -> source.forEachPage(page -> {
+                throw new IllegalStateException("Publishing failed");
+            }));
+
+            // Then
+            assertThat(fetchThread.submit(() -> true).get(5, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            fetchThread.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.manager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TargetSetTest {
+
+    @Test
+    public void add_whenBelowThreshold_shouldRejectDuplicates() {
+        // Given
+        final String unitId = UUID.randomUUID().toString();
+        try (TargetSet targets = new TargetSet(100)) {
+
+            // When / Then
+            assertThat(targets.add(unitId)).isTrue();
+            assertThat(targets.add(unitId)).isFalse();
+            assertThat(targets.getSpilledRuns()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void add_whenSpilled_shouldStillRejectEveryPreviousTarget() {
+        // Given
+        final List<String> unitIds = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            unitIds.add(UUID.randomUUID().toString());
+        }
+        try (TargetSet targets = new TargetSet(150)) {
+            unitIds.forEach(targets::add);
+
+            // When / Then
+            assertThat(targets.getSpilledRuns()).isEqualTo(6);
+            for (String unitId : unitIds) {
+                assertThat(targets.add(unitId)).isFalse();
+            }
+            assertThat(targets.add(UUID.randomUUID().toString())).isTrue();
+        }
+    }
+}
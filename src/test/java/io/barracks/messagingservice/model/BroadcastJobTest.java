@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.model;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BroadcastJobTest {
+
+    @Test
+    public void getThroughput_whenQueued_shouldBeZero() {
+        // Given
+        final BroadcastJob job = new BroadcastJob(UUID.randomUUID().toString());
+
+        // When / Then
+        assertThat(job.getThroughput()).isEqualTo(0);
+        assertThat(job.getEta()).isNull();
+    }
+
+    @Test
+    public void getEta_whenRunningWithoutProgress_shouldBeUnknown() {
+        // Given
+        final BroadcastJob job = new BroadcastJob(UUID.randomUUID().toString());
+        job.start();
+        job.addTargeted(10);
+
+        // When / Then
+        assertThat(job.getThroughput()).isEqualTo(0);
+        assertThat(job.getEta()).isNull();
+        assertThat(job.getRemaining()).isEqualTo(10);
+    }
+
+    @Test
+    public void getEta_whenRunningWithProgress_shouldEstimateRemainingSeconds() throws Exception {
+        // Given
+        final BroadcastJob job = new BroadcastJob(UUID.randomUUID().toString());
+        job.start();
+        job.addTargeted(4);
+        job.addPublished();
+        job.addFailed();
+        job.addDuplicate();
+        Thread.sleep(10);
+
+        // When / Then
+        assertThat(job.getRemaining()).isEqualTo(1);
+        assertThat(job.getThroughput()).isGreaterThan(0);
+        assertThat(job.getEta()).isNotNull().isGreaterThanOrEqualTo(1L);
+    }
+
+    @Test
+    public void getEta_whenFinished_shouldBeNullAndThroughputFrozen() throws Exception {
+        // Given
+        final BroadcastJob job = new BroadcastJob(UUID.randomUUID().toString());
+        job.start();
+        job.addTargeted(1);
+        job.addPublished();
+        job.complete(true);
+        final double throughput = job.getThroughput();
+        Thread.sleep(10);
+
+        // When / Then
+        assertThat(job.isFinished()).isTrue();
+        assertThat(job.getStatus()).isEqualTo(BroadcastJob.Status.COMPLETED);
+        assertThat(job.getEta()).isNull();
+        assertThat(job.getThroughput()).isEqualTo(throughput);
+    }
+}
@@ -25,6 +25,8 @@
 package io.barracks.messagingservice.rest;
 
 import io.barracks.messagingservice.manager.MessagingServiceManager;
+import io.barracks.messagingservice.manager.exception.BroadcastJobNotFoundException;
+import io.barracks.messagingservice.model.BroadcastJob;
 import io.barracks.messagingservice.model.User;
 import io.barracks.messagingservice.security.UserAuthentication;
 import io.barracks.messagingservice.utils.RandomPrincipal;
@@ -33,14 +35,17 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
-import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.core.task.TaskRejectedException;
 
 import java.security.Principal;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verify;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -72,14 +77,16 @@ public class MessageResourceTest {
         final boolean retained = true;
         final String message = UUID.randomUUID().toString();
         final User user = ((UserAuthentication) principal).getDetails();
+        final BroadcastJob job = new BroadcastJob(user.getId());
 
-        doReturn(new AsyncResult<>(true)).when(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained);
+        doReturn(job).when(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained, 1);
 
         //When
-        messageResource.sendMessage(message, unitIdArray, filtersArray, retained, principal);
+        final BroadcastJob result = messageResource.sendMessage(message, unitIdArray, filtersArray, retained, 1, principal);
 
         //Then
-        verify(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained);
+        assertThat(result).isSameAs(job);
+        verify(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained, 1);
     }
 
     @Test
@@ -94,14 +101,16 @@ public class MessageResourceTest {
         final boolean retained = true;
         final String message = UUID.randomUUID().toString();
         final User user = ((UserAuthentication) principal).getDetails();
+        final BroadcastJob job = new BroadcastJob(user.getId());
 
-        doReturn(new AsyncResult<>(true)).when(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained);
+        doReturn(job).when(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained, 1);
 
         //When
-        messageResource.sendMessage(message, emptyUnitIdArray, filtersArray, retained, principal);
+        final BroadcastJob result = messageResource.sendMessage(message, emptyUnitIdArray, filtersArray, retained, 1, principal);
 
         //Then
-        verify(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained);
+        assertThat(result).isSameAs(job);
+        verify(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained, 1);
     }
 
     @Test
@@ -116,14 +125,16 @@ public class MessageResourceTest {
         final boolean retained = true;
         final String message = UUID.randomUUID().toString();
         final User user = ((UserAuthentication) principal).getDetails();
+        final BroadcastJob job = new BroadcastJob(user.getId());
 
-        doReturn(new AsyncResult<>(true)).when(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained);
+        doReturn(job).when(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained, 1);
 
         //When
-        messageResource.sendMessage(message, unitIdArray, emptyFiltersArray, retained, principal);
+        final BroadcastJob result = messageResource.sendMessage(message, unitIdArray, emptyFiltersArray, retained, 1, principal);
 
         //Then
-        verify(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained);
+        assertThat(result).isSameAs(job);
+        verify(messagingServiceManager).sendMessage(user, unitIdList, filtersList, message, retained, 1);
     }
 
     @Test
@@ -134,12 +145,57 @@ public class MessageResourceTest {
         final String[] emptyArray = new String[0];
         final List<String> emptyList = Arrays.asList(emptyArray);
         final boolean retained = true;
-        doReturn(new AsyncResult<>(true)).when(messagingServiceManager).sendMessage(user, emptyList, emptyList, message, retained);
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        doReturn(job).when(messagingServiceManager).sendMessage(user, emptyList, emptyList, message, retained, 1);
 
         //When
-        messageResource.sendMessage(message, emptyArray, emptyArray, retained, principal);
+        final BroadcastJob result = messageResource.sendMessage(message, emptyArray, emptyArray, retained, 1, principal);
 
         //Then
-        verify(messagingServiceManager).sendMessage(user, emptyList, emptyList, message, retained);
+        assertThat(result).isSameAs(job);
+        verify(messagingServiceManager).sendMessage(user, emptyList, emptyList, message, retained, 1);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void sendMessage_whenBroadcastExecutorIsSaturated_shouldPropagateRejection() {
+        //Given
+        final String message = UUID.randomUUID().toString();
+        final User user = ((UserAuthentication) principal).getDetails();
+        final String[] emptyArray = new String[0];
+        final List<String> emptyList = Arrays.asList(emptyArray);
+        final boolean retained = false;
+        doThrow(new TaskRejectedException("Executor saturated")).when(messagingServiceManager).sendMessage(user, emptyList, emptyList, message, retained, 1);
+
+        //When / Then
+        assertThatExceptionOfType(TaskRejectedException.class)
+                .isThrownBy(() -> messageResource.sendMessage(message, emptyArray, emptyArray, retained, 1, principal));
+        verify(messagingServiceManager).sendMessage(user, emptyList, emptyList, message, retained, 1);
+    }
+
+    @Test
+    public void getJob_whenJobExists_shouldReturnJob() {
+        //Given
+        final User user = ((UserAuthentication) principal).getDetails();
+        final BroadcastJob job = new BroadcastJob(user.getId());
+        doReturn(job).when(messagingServiceManager).getJob(user, job.getId());
+
+        //When
+        final BroadcastJob result = messageResource.getJob(job.getId(), principal);
+
+        //Then
+        verify(messagingServiceManager).getJob(user, job.getId());
+        assertThat(result).isSameAs(job);
+    }
+
+    @Test
+    public void getJob_whenJobDoesNotExist_shouldPropagateException() {
+        //Given
+        final User user = ((UserAuthentication) principal).getDetails();
+        final String jobId = UUID.randomUUID().toString();
+        doThrow(new BroadcastJobNotFoundException(jobId)).when(messagingServiceManager).getJob(user, jobId);
+
+        //When / Then
+        assertThatExceptionOfType(BroadcastJobNotFoundException.class)
+                .isThrownBy(() -> messageResource.getJob(jobId, principal));
+    }
+}
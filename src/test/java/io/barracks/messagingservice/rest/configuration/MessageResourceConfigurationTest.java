@@ -27,6 +27,7 @@ package io.barracks.messagingservice.rest.configuration;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import io.barracks.commons.util.Endpoint;
+import io.barracks.messagingservice.model.BroadcastJob;
 import io.barracks.messagingservice.rest.MessageResource;
 import io.barracks.messagingservice.utils.RandomPrincipal;
 import org.junit.Before;
@@ -41,10 +42,13 @@ import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.ResultActions;
 
-import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.verify;
 import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.document;
+import static org.springframework.restdocs.payload.PayloadDocumentation.fieldWithPath;
+import static org.springframework.restdocs.payload.PayloadDocumentation.responseFields;
 import static org.springframework.restdocs.request.RequestDocumentation.parameterWithName;
+import static org.springframework.restdocs.request.RequestDocumentation.pathParameters;
 import static org.springframework.restdocs.request.RequestDocumentation.requestParameters;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -53,6 +57,7 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 public class MessageResourceConfigurationTest {
 
     private static final Endpoint SEND_MESSAGE_ENDPOINT = Endpoint.from(HttpMethod.POST, "/messages", "unitId={unitId1}&filter={filter1}&retained={retained}");
+    private static final Endpoint GET_JOB_ENDPOINT = Endpoint.from(HttpMethod.GET, "/messages/{jobId}");
 
     @MockBean
     private MessageResource messageResource;
@@ -82,31 +87,33 @@ public class MessageResourceConfigurationTest {
         final String filter1 = "filter1";
         final String filter2 = "filter2";
         final String[] filterArray = {filter1, filter2};
+        final BroadcastJob job = new BroadcastJob(principal.getDetails().getId());
 
-
-        doNothing().when(messageResource).sendMessage(message, unitIdArray, filterArray, true, principal);
+        doReturn(job).when(messageResource).sendMessage(message, unitIdArray, filterArray, true, 1, principal);
 
         // When
         final ResultActions result = mvc.perform(
                 RestDocumentationRequestBuilders.request(endpoint.getMethod(), endpoint.getPath())
                         .principal(principal)
-                        .accept(MediaType.TEXT_PLAIN_VALUE)
+                        .accept(MediaType.APPLICATION_JSON_VALUE)
                         .contentType(MediaType.TEXT_PLAIN_VALUE)
                         .param("unitId", unitId1 + "," + unitId2)
                         .param("filter", filter1 + "," + filter2)
                         .param("retained", "true")
+                        .param("qos", "1")
                         .content(message)
         );
 
         // Then
-        verify(messageResource).sendMessage(message, unitIdArray, filterArray, true, principal);
-        result.andExpect(status().isOk())
+        verify(messageResource).sendMessage(message, unitIdArray, filterArray, true, 1, principal);
+        result.andExpect(status().isAccepted())
                 .andDo(document(
                         "send",
                         requestParameters(
                                 parameterWithName("unitId").description("The ID of the device we want to send a message to."),
                                 parameterWithName("filter").description("The filters which group the devices we want to send a message to."),
-                                parameterWithName("retained").description("Indicates whether we want to retain the message or not.")
+                                parameterWithName("retained").description("Indicates whether we want to retain the message or not."),
+                                parameterWithName("qos").description("The MQTT QoS level of the message: 0, 1 (default) or 2. With 0 the message is sent without waiting for the broker to acknowledge it.")
                         )
                 ));
     }
@@ -118,25 +125,70 @@ public class MessageResourceConfigurationTest {
         objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
         final String message = "Message we want to send to all devices";
         final String[] emptyArray = new String[0];
+        final BroadcastJob job = new BroadcastJob(principal.getDetails().getId());
 
-        doNothing().when(messageResource).sendMessage(message, emptyArray, emptyArray, true, principal);
+        doReturn(job).when(messageResource).sendMessage(message, emptyArray, emptyArray, true, 1, principal);
 
         // When
         final ResultActions result = mvc.perform(
                 RestDocumentationRequestBuilders.request(endpoint.getMethod(), endpoint.getPath())
                         .principal(principal)
-                        .accept(MediaType.TEXT_PLAIN_VALUE)
+                        .accept(MediaType.APPLICATION_JSON_VALUE)
                         .contentType(MediaType.TEXT_PLAIN_VALUE)
                         .param("retained", "true")
                         .content(message)
         );
 
         // Then
-        verify(messageResource).sendMessage(message, emptyArray, emptyArray, true, principal);
-        result.andExpect(status().isOk())
+        verify(messageResource).sendMessage(message, emptyArray, emptyArray, true, 1, principal);
+        result.andExpect(status().isAccepted())
                 .andDo(document(
                         "send-to-all"
                 ));
     }
 
+    @Test
+    public void documentGetJob() throws Exception {
+        //  Given
+        final Endpoint endpoint = GET_JOB_ENDPOINT;
+        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+        final BroadcastJob job = new BroadcastJob(principal.getDetails().getId());
+        job.start();
+        job.addTargeted(3);
+        job.addPublished();
+        job.addFailed();
+
+        doReturn(job).when(messageResource).getJob(job.getId(), principal);
+
+        // When
+        final ResultActions result = mvc.perform(
+                RestDocumentationRequestBuilders.request(endpoint.getMethod(), endpoint.getPath(), job.getId())
+                        .principal(principal)
+                        .accept(MediaType.APPLICATION_JSON_VALUE)
+        );
+
+        // Then
+        verify(messageResource).getJob(job.getId(), principal);
+        result.andExpect(status().isOk())
+                .andDo(document(
+                        "get-job",
+                        pathParameters(
+                                parameterWithName("jobId").description("The ID of the broadcast job returned when the message was sent.")
+                        ),
+                        responseFields(
+                                fieldWithPath("id").description("The ID of the broadcast job."),
+                                fieldWithPath("status").description("The status of the job: QUEUED, RUNNING, COMPLETED or FAILED."),
+                                fieldWithPath("created").description("The date the message was sent."),
+                                fieldWithPath("finished").optional().description("The date the job finished, absent while it runs."),
+                                fieldWithPath("targeted").description("The number of devices targeted so far."),
+                                fieldWithPath("published").description("The number of devices the message was published to."),
+                                fieldWithPath("failed").description("The number of devices the message could not be published to."),
+                                fieldWithPath("duplicates").description("The number of targeted devices skipped because they were already reached by this job."),
+                                fieldWithPath("remaining").description("The number of targeted devices still to be processed."),
+                                fieldWithPath("throughput").description("The number of devices processed per second."),
+                                fieldWithPath("eta").optional().description("The estimated number of seconds before the job completes, absent when unknown.")
+                        )
+                ));
+    }
+
 }
@@ -0,0 +1,94 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.messagingservice.security;
+
+import io.barracks.messagingservice.client.exception.AuthorizationServiceClientException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TokenAuthenticationFilterTest {
+
+    @Mock
+    private UserTokenCache userTokenCache;
+
+    private TokenAuthenticationFilter tokenAuthenticationFilter;
+
+    @Before
+    public void setUp() {
+        tokenAuthenticationFilter = new TokenAuthenticationFilter(userTokenCache);
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void doFilter_whenTokenIsRejected_shouldContinueUnauthenticated() throws Exception {
+        // Given
+        final String token = UUID.randomUUID().toString();
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("X-Auth-Token", token);
+        final MockFilterChain chain = new MockFilterChain();
+        doThrow(new AuthorizationServiceClientException(new HttpClientErrorException(HttpStatus.UNAUTHORIZED)))
+                .when(userTokenCache).getUser(token);
+
+        // When
+        tokenAuthenticationFilter.doFilter(request, new MockHttpServletResponse(), chain);
+
+        // Then
+        assertThat(chain.getRequest()).isSameAs(request);
+        assertThat(SecurityContextHolder.getContext().getAuthentication()).isNull();
+    }
+
+    @Test
+    public void doFilter_whenAuthorizationServiceFails_shouldPropagateTheFailure() throws Exception {
+        // Given
+        final String token = UUID.randomUUID().toString();
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("X-Auth-Token", token);
+        final MockFilterChain chain = new MockFilterChain();
+        doThrow(new AuthorizationServiceClientException(new HttpServerErrorException(HttpStatus.BAD_GATEWAY)))
+                .when(userTokenCache).getUser(token);
+
+        // When / Then
+        assertThatExceptionOfType(AuthorizationServiceClientException.class)
+                .isThrownBy(() -> tokenAuthenticationFilter.doFilter(request, new MockHttpServletResponse(), chain));
+        assertThat(chain.getRequest()).isNull();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.messagingservice.security;
+
+import io.barracks.messagingservice.client.AuthorizationServiceClient;
+import io.barracks.messagingservice.client.exception.AuthorizationServiceClientException;
+import io.barracks.messagingservice.model.User;
+import io.barracks.messagingservice.utils.UserUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UserTokenCacheTest {
+
+    @Mock
+    private AuthorizationServiceClient authorizationServiceClient;
+
+    private UserTokenCache userTokenCache;
+
+    @Before
+    public void setUp() {
+        userTokenCache = new UserTokenCache(authorizationServiceClient, 60000L, 60000L, 100L);
+    }
+
+    @Test
+    public void getUser_whenCalledTwiceWithSameToken_shouldRequestUserOnce() {
+        // Given
+        final String token = UUID.randomUUID().toString();
+        final User expected = UserUtils.getUser();
+        doReturn(expected).when(authorizationServiceClient).requestUserFromToken(token);
+
+        // When
+        final User first = userTokenCache.getUser(token);
+        final User second = userTokenCache.getUser(token);
+
+        // Then
+        verify(authorizationServiceClient, times(1)).requestUserFromToken(token);
+        assertThat(first).isEqualTo(expected);
+        assertThat(second).isEqualTo(expected);
+    }
+
+    @Test
+    public void getUser_whenTokenIsRejected_shouldRememberTheRejection() {
+        // Given
+        final String token = UUID.randomUUID().toString();
+        doThrow(new AuthorizationServiceClientException(new HttpClientErrorException(HttpStatus.UNAUTHORIZED)))
+                .when(authorizationServiceClient).requestUserFromToken(token);
+
+        // When / Then
+        assertThatExceptionOfType(AuthorizationServiceClientException.class)
+                .isThrownBy(() -> userTokenCache.getUser(token));
+        assertThatExceptionOfType(AuthorizationServiceClientException.class)
+                .isThrownBy(() -> userTokenCache.getUser(token));
+        verify(authorizationServiceClient, times(1)).requestUserFromToken(token);
+    }
+
+    @Test
+    public void getUser_whenServiceFails_shouldNotCacheTheFailure() {
+        // Given
+        final String token = UUID.randomUUID().toString();
+        final User expected = UserUtils.getUser();
+        doThrow(new AuthorizationServiceClientException(new HttpServerErrorException(HttpStatus.BAD_GATEWAY)))
+                .doReturn(expected)
+                .when(authorizationServiceClient).requestUserFromToken(token);
+
+        // When
+        assertThatExceptionOfType(AuthorizationServiceClientException.class)
+                .isThrownBy(() -> userTokenCache.getUser(token));
+        final User result = userTokenCache.getUser(token);
+
+        // Then
+        verify(authorizationServiceClient, times(2)).requestUserFromToken(token);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getUser_whenConcurrentRequestsShareToken_shouldRequestUserOnce() throws Exception {
+        // Given
+        final String token = UUID.randomUUID().toString();
+        final User expected = UserUtils.getUser();
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            lookupStarted.countDown();
+            release.await();
+            return expected;
+        }).when(authorizationServiceClient).requestUserFromToken(token);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // When
+        final Future<User> leader = executor.submit(() -> userTokenCache.getUser(token));
+        lookupStarted.await();
+        final List<Future<User>> followers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            followers.add(executor.submit(() -> userTokenCache.getUser(token)));
+        }
+        release.countDown();
+
+        // Then
+        assertThat(leader.get()).isEqualTo(expected);
+        for (Future<User> follower : followers) {
+            assertThat(follower.get()).isEqualTo(expected);
+        }
+        verify(authorizationServiceClient, times(1)).requestUserFromToken(token);
+        executor.shutdown();
+    }
+
+    @Test
+    public void getUser_whenSharedLookupFails_shouldFailEveryWaiter() throws Exception {
+        // Given
+        final String token = UUID.randomUUID().toString();
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            lookupStarted.countDown();
+            release.await();
+            throw new AuthorizationServiceClientException(new HttpServerErrorException(HttpStatus.BAD_GATEWAY));
+        }).when(authorizationServiceClient).requestUserFromToken(token);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        // When
+        final Future<User> leader = executor.submit(() -> userTokenCache.getUser(token));
+        lookupStarted.await();
+        final Future<User> follower = executor.submit(() -> userTokenCache.getUser(token));
+        release.countDown();
+
+        // Then
+        assertThatExceptionOfType(ExecutionException.class).isThrownBy(leader::get)
+                .withCauseInstanceOf(AuthorizationServiceClientException.class);
+        assertThatExceptionOfType(ExecutionException.class).isThrownBy(follower::get)
+                .withCauseInstanceOf(AuthorizationServiceClientException.class);
+        executor.shutdown();
+    }
+}